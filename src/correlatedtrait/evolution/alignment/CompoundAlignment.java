@@ -35,13 +35,34 @@ public class CompoundAlignment extends Alignment {
 	// siteWeightsInput
 	public Input<Alignment> alignmentInput = new Input<Alignment>("alignment", "Alignment forming the component sites",
 			Validate.REQUIRED);
+	public Input<String> groupsInput = new Input<String>("groups",
+			"semicolon separated groups of comma separated site numbers (starting at 0) of the alignment, each group "
+					+ "forming one compound site, e.g. '0,1;0,2;1,2'. All groups must have the same size. "
+					+ "By default, all sites form a single compound site, or see groupSize.");
+	public Input<Integer> groupSizeInput = new Input<Integer>("groupSize",
+			"if specified and groups is not, every combination of this many sites of the alignment forms a compound site, "
+					+ "e.g. 2 for all pairs of traits");
 	protected Alignment alignment;
 
+	/** sites of the alignment forming each compound site **/
+	protected int[][] groups;
+	/** compound state of every taxon at every compound site, at taxon * groups.length + compound site **/
+	protected int[] compoundStates;
+
 	public CompoundAlignment(Alignment input) {
 		super();
 		initAndValidate(input);
 	}
 
+	/**
+	 * @param groups sites of input forming each compound site
+	 */
+	public CompoundAlignment(Alignment input, int[][] groups) {
+		super();
+		this.groups = groups;
+		initAndValidate(input);
+	}
+
 	public CompoundAlignment() {
 		super();
 	}
@@ -59,17 +80,119 @@ public class CompoundAlignment extends Alignment {
 		return guessedSizes;
 	}
 
+	/**
+	 * Parse a groups specification such as "0,1;0,2;1,2"
+	 */
+	static public int[][] parseGroups(String groups) {
+		String[] strs = groups.trim().split(";");
+		int[][] result = new int[strs.length][];
+		for (int i = 0; i < strs.length; ++i) {
+			String[] sites = strs[i].trim().split(",");
+			result[i] = new int[sites.length];
+			for (int j = 0; j < sites.length; ++j) {
+				result[i][j] = Integer.parseInt(sites[j].trim());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * All combinations of groupSize out of siteCount sites, in lexicographic
+	 * order, so all pairs are 0,1 0,2 ... 1,2 ...
+	 */
+	static public int[][] allGroups(int siteCount, int groupSize) {
+		if (groupSize < 1 || groupSize > siteCount) {
+			throw new IllegalArgumentException("groupSize must be between 1 and the number of sites (" + siteCount + ")");
+		}
+		List<int[]> result = new ArrayList<int[]>();
+		int[] group = new int[groupSize];
+		for (int j = 0; j < groupSize; ++j) {
+			group[j] = j;
+		}
+		while (true) {
+			result.add(group.clone());
+			// advance the rightmost site that can still move
+			int j = groupSize - 1;
+			while (j >= 0 && group[j] == siteCount - groupSize + j) {
+				--j;
+			}
+			if (j < 0) {
+				break;
+			}
+			group[j]++;
+			for (int l = j + 1; l < groupSize; ++l) {
+				group[l] = group[l - 1] + 1;
+			}
+		}
+		return result.toArray(new int[result.size()][]);
+	}
+
+	private void initGroups() {
+		int siteCount = alignment.getSiteCount();
+		if (groups == null) {
+			if (groupsInput.get() != null) {
+				groups = parseGroups(groupsInput.get());
+			} else if (groupSizeInput.get() != null) {
+				groups = allGroups(siteCount, groupSizeInput.get());
+			} else {
+				groups = new int[1][siteCount];
+				for (int site = 0; site < siteCount; ++site) {
+					groups[0][site] = site;
+				}
+			}
+		}
+		if (groups.length == 0) {
+			throw new IllegalArgumentException("CompoundAlignment needs at least one group of sites");
+		}
+		for (int[] group : groups) {
+			if (group.length != groups[0].length) {
+				throw new IllegalArgumentException("All groups of sites must have the same size, but found sizes "
+						+ groups[0].length + " and " + group.length);
+			}
+			for (int j = 0; j < group.length; ++j) {
+				if (group[j] < 0 || group[j] >= siteCount) {
+					throw new IllegalArgumentException("Site " + group[j] + " is not in the alignment, which has "
+							+ siteCount + " sites");
+				}
+				for (int l = 0; l < j; ++l) {
+					if (group[l] == group[j]) {
+						throw new IllegalArgumentException("Site " + group[j] + " occurs twice in the same group");
+					}
+				}
+			}
+		}
+	}
+
+	/** sites of the alignment forming each compound site **/
+	public int[][] getGroups() {
+		return groups;
+	}
+
 	private void initAndValidate(Alignment alignment_) {
 		alignment = alignment_;
 		alignmentInput.setValue(alignment_, this);
+		initGroups();
+		int groupSize = groups[0].length;
 
 		// Construct or copy the appropriate data type
 		CompoundDataType cdt = new CompoundDataType();
 		if (userDataTypeInput.get() instanceof CompoundDataType) {
 			cdt = (CompoundDataType) userDataTypeInput.get();
+			if (cdt.getStateCounts().length != groupSize) {
+				throw new IllegalArgumentException("CompoundDataType has " + cdt.getStateCounts().length
+						+ " components, but groups of sites have size " + groupSize);
+			}
 		} else if (dataTypeInput.get() == NUCLEOTIDE) {
-			// Guess the data type from the data
-			Integer[] guessedSizes = guessSizes(alignment);
+			// Guess the data type from the data; a component must be large
+			// enough for the corresponding site of every group
+			Integer[] siteSizes = guessSizes(alignment);
+			Integer[] guessedSizes = new Integer[groupSize];
+			for (int j = 0; j < groupSize; ++j) {
+				guessedSizes[j] = 0;
+				for (int[] group : groups) {
+					guessedSizes[j] = Math.max(guessedSizes[j], siteSizes[group[j]]);
+				}
+			}
 			List<DataType> components = new ArrayList<DataType>(); 
 			for (int i=0; i<guessedSizes.length; ++i) {
 				components.add(alignment.getDataType());
@@ -82,41 +205,50 @@ public class CompoundAlignment extends Alignment {
 		}
 		m_dataType = cdt;
 
+		if (siteWeightsInput.get() != null) {
+			throw new RuntimeException("Weights of compound sites follow from the groups, no need to specify siteWeights");
+		}
+
 		// Given that we take alignments, we don't need to sort, just to check.
 		taxaNames = alignment.getTaxaNames();
-		// counts, the list of sequences, starts at everything in state 0.
-		// stateCounts, the list of stateCount for each sequence, starts being 1
-		// everywhere.
-		maxStateCount = 1;
-		for (int i = 0; i < taxaNames.size(); ++i) {
-			ArrayList<Integer> zero = new ArrayList<Integer>();
-			zero.add(0);
-			counts.add(zero);
-			stateCounts.add(cdt.getStateCount());
-		}
+		int taxonCount = alignment.getTaxonCount();
 
-		for (int taxon_ = 0; taxon_ < alignment.getTaxonCount(); ++taxon_) {
-			for (int site_ = 0; site_ < alignment.getSiteCount(); ++site_) {
-				counts.get(taxon_).set(0,
-						counts.get(taxon_).get(0) * cdt.getStateCounts()[site_] + alignment.getPattern(taxon_, site_));
+		// site patterns of the source alignment, taxa in the order of taxaNames
+		int[][] sourceSites = new int[alignment.getSiteCount()][];
+		for (int site = 0; site < sourceSites.length; ++site) {
+			sourceSites[site] = alignment.getPattern(alignment.getPatternIndex(site));
+		}
+		compoundStates = new int[taxonCount * groups.length];
+		int[] componentStates = new int[groupSize];
+		for (int taxon = 0; taxon < taxonCount; ++taxon) {
+			for (int g = 0; g < groups.length; ++g) {
+				for (int j = 0; j < groupSize; ++j) {
+					componentStates[j] = sourceSites[groups[g][j]][taxon];
+				}
+				// ambiguous component states get codes of their own, see CompoundDataType
+				compoundStates[taxon * groups.length + g] = cdt.componentState2compoundState(componentStates);
 			}
 		}
 
-		maxStateCount = stateCounts.get(0);
+		maxStateCount = cdt.getStateCount();
+		stateCounts.clear();
+		counts.clear();
+		for (int taxon = 0; taxon < taxonCount; ++taxon) {
+			stateCounts.add(maxStateCount);
+			// counts, from which calcPatterns() builds the site patterns
+			List<Integer> sequence = new ArrayList<Integer>(groups.length);
+			for (int g = 0; g < groups.length; ++g) {
+				sequence.add(compoundStates[taxon * groups.length + g]);
+			}
+			counts.add(sequence);
+		}
 
+		// as for any alignment, so that stripInvariantSites and ascertainment apply to compound sites
+		calcPatterns();
 		if (maxStateCount != m_dataType.getStateCount()) {
 			throw new RuntimeException("Size of data type (" + m_dataType.getStateCount() + ") and of alignments ("
 					+ maxStateCount + ") do not match");
 		}
-
-		if (siteWeightsInput.get() != null) {
-			throw new RuntimeException("No need to specify siteWeights for only one site, did you do something wrong?");
-		}
-
-		// grab data from children
-		// Sanity check: make sure sequences are of same length
-
-		calcPatterns();
 		Log.info.println(toString(false));
 	}
 
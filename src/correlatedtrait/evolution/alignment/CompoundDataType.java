@@ -57,6 +57,23 @@ public class CompoundDataType extends DataType.Base {
 	protected Integer[] stateCountsExcludingAmbiguities;
 	protected int stateCount = 1;
 
+	/** place value of each component in the compound state, the first component varies slowest **/
+	protected int[] stride;
+	/**
+	 * place value of each component in codes from getStateCount() onwards, which represent combinations
+	 * in which some component has an ambiguous state, using componentSizesIncludingAmbiguities
+	 **/
+	protected int[] ambiguityStride;
+	/** number of codes: the compound states plus all combinations with ambiguous component states **/
+	protected int codeCount;
+	/** state of component i for code c at c * stride.length + i **/
+	protected int[] componentStateTable;
+	/** state set and ambiguity of every code, which only depend on the components **/
+	protected boolean[][] stateSets;
+	protected boolean[] ambiguous;
+	/** codes of compound states, filled on first use since not all data types can produce codes **/
+	protected String[] codes;
+
 	public CompoundDataType(List<DataType> inputs, Integer[] sizes, Integer[] sizesWithAmbiguities) {
 		super();
 		initAndValidate(inputs, new IntegerParameter(sizes), new IntegerParameter(sizesWithAmbiguities));
@@ -129,6 +146,59 @@ public class CompoundDataType extends DataType.Base {
 		}
 		System.out.printf("%s derived internal sizes to be %s\n", getID(),
 				Arrays.toString(stateCountsIncludingAmbiguities));
+		setupTables();
+	}
+
+	/**
+	 * Decompose every code once, so that component states, state sets and
+	 * ambiguity are table lookups instead of divisions and fresh arrays on
+	 * every call. Codes below getStateCount() are the compound states, so
+	 * the rate matrix can be indexed by them. Each combination of component
+	 * states in which some component is ambiguous gets its own code from
+	 * getStateCount() onwards.
+	 */
+	private void setupTables() {
+		int k = stateCountsExcludingAmbiguities.length;
+		stride = new int[k];
+		ambiguityStride = new int[k];
+		int s = 1;
+		long a = 1;
+		for (int i = k - 1; i >= 0; --i) {
+			stride[i] = s;
+			s *= stateCountsExcludingAmbiguities[i];
+			ambiguityStride[i] = (int) a;
+			a *= stateCountsIncludingAmbiguities[i];
+		}
+		if (stateCount + a > Integer.MAX_VALUE / Math.max(1, k)) {
+			throw new IllegalArgumentException("Too many combinations of component states (" + a + ") to represent");
+		}
+		codeCount = stateCount + (int) a;
+		componentStateTable = new int[codeCount * k];
+		for (int code = 0; code < codeCount; ++code) {
+			for (int i = 0; i < k; ++i) {
+				componentStateTable[code * k + i] = code < stateCount
+						? (code / stride[i]) % stateCountsExcludingAmbiguities[i]
+						: ((code - stateCount) / ambiguityStride[i]) % stateCountsIncludingAmbiguities[i];
+			}
+		}
+		stateSets = new boolean[codeCount][];
+		ambiguous = new boolean[codeCount];
+		for (int code = 0; code < codeCount; ++code) {
+			stateSets[code] = calcStateSet(code);
+			ambiguous[code] = calcAmbiguousState(code);
+		}
+		codes = new String[codeCount];
+	}
+
+	/** number of codes, of which the first getStateCount() are the compound states **/
+	public int getCodeCount() {
+		return codeCount;
+	}
+
+	private void checkCode(int code) {
+		if (code < 0 || code >= codeCount) {
+			throw new IllegalArgumentException("Code " + code + " is not one of the " + codeCount + " codes of " + getTypeDescription());
+		}
 	}
 
 	static public int[] compoundState2componentStates(Integer[] components, int compoundState) {
@@ -141,16 +211,15 @@ public class CompoundDataType extends DataType.Base {
 	}
 
 	static public int compoundState2componentState(Integer[] components, int compoundState, int component) {
-		/*
-		 * // Old Implementation: for (int i = components.length - 1; i >
-		 * component; --i) { compoundState /= components[i]; } return
-		 * compoundState % components[component];
-		 */
-		return compoundState2componentStates(components, compoundState)[component];
+		for (int i = components.length - 1; i > component; --i) {
+			compoundState /= components[i];
+		}
+		return compoundState % components[component];
 	}
 
 	public int compoundState2componentState(int compoundState, int component) {
-		return compoundState2componentState(stateCountsExcludingAmbiguities, compoundState, component);
+		checkCode(compoundState);
+		return componentStateTable[compoundState * stride.length + component];
 	}
 
 	static public int componentState2compoundState(Integer[] components, int[] componentStates) {
@@ -162,8 +231,31 @@ public class CompoundDataType extends DataType.Base {
 		return compoundState;
 	}
 
+	/**
+	 * code for a combination of component states, which is a compound state if
+	 * none of the component states is ambiguous, see setupTables()
+	 */
 	public int componentState2compoundState(int[] componentStates) {
-		return componentState2compoundState(stateCountsExcludingAmbiguities, componentStates);
+		int compoundState = 0;
+		boolean ambiguousComponent = false;
+		for (int i = 0; i < stride.length; ++i) {
+			compoundState += componentStates[i] * stride[i];
+			if (componentStates[i] >= stateCountsExcludingAmbiguities[i]) {
+				ambiguousComponent = true;
+			}
+		}
+		if (!ambiguousComponent) {
+			return compoundState;
+		}
+		int code = stateCount;
+		for (int i = 0; i < stride.length; ++i) {
+			if (componentStates[i] < 0 || componentStates[i] >= stateCountsIncludingAmbiguities[i]) {
+				throw new IllegalArgumentException("State " + componentStates[i] + " of component " + i
+						+ " exceeds its size including ambiguities (" + stateCountsIncludingAmbiguities[i] + ")");
+			}
+			code += componentStates[i] * ambiguityStride[i];
+		}
+		return code;
 	}
 
 	public int getComponentCount() {
@@ -215,13 +307,19 @@ public class CompoundDataType extends DataType.Base {
 
 	/**
 	 * returns an array of length getStateCount() containing the (possibly
-	 * ambiguous) states that this state represents.
+	 * ambiguous) states that this state represents. The array is shared, so
+	 * should not be modified.
 	 */
 	@Override
 	public boolean[] getStateSet(int iState) {
+		checkCode(iState);
+		return stateSets[iState];
+	}
+
+	private boolean[] calcStateSet(int iState) {
 		boolean[] result = new boolean[] { true };
 		for (int i = 0; i < components.size(); ++i) {
-			boolean[] byComponent = components.get(i).getStateSet(compoundState2componentState(iState, i));
+			boolean[] byComponent = componentStateSet(i, compoundState2componentState(iState, i));
 			boolean[] new_result = new boolean[result.length * byComponent.length];
 			for (int j = 0; j < new_result.length; ++j) {
 				new_result[j] = result[j / byComponent.length] & byComponent[j % byComponent.length];
@@ -241,6 +339,29 @@ public class CompoundDataType extends DataType.Base {
 
 	@Override
 	public boolean isAmbiguousState(int state) {
+		checkCode(state);
+		return ambiguous[state];
+	}
+
+	/**
+	 * state set of a component, where codes beyond those the component knows, which
+	 * componentSizesIncludingAmbiguities may allow for, stand for any state
+	 */
+	private boolean[] componentStateSet(int component, int state) {
+		try {
+			return components.get(component).getStateSet(state);
+		} catch (IndexOutOfBoundsException e) {
+			boolean[] any = new boolean[stateCountsExcludingAmbiguities[component]];
+			Arrays.fill(any, true);
+			return any;
+		}
+	}
+
+	private boolean calcAmbiguousState(int state) {
+		if (state >= stateCount) {
+			// some component has an ambiguous state
+			return true;
+		}
 		for (int i = 0; i < components.size(); ++i) {
 			if (components.get(i).isAmbiguousState(compoundState2componentState(state, i))) {
 				return true;
@@ -274,6 +395,14 @@ public class CompoundDataType extends DataType.Base {
 
 	@Override
 	public String getCode(int state) {
+		checkCode(state);
+		if (codes[state] == null) {
+			codes[state] = calcCode(state);
+		}
+		return codes[state];
+	}
+
+	private String calcCode(int state) {
 		String ans = "";
 		int i = 0;
 		for (DataType t : components) {
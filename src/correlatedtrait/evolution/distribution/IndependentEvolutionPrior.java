@@ -35,13 +35,14 @@ public class IndependentEvolutionPrior extends Distribution {
 		
 		logP = 0;
 		csm = csmInput.get();
+		boolean[] dependencies = csm.getDependencyMatrix();
 		int components = csm.getShape().length;
 		for (int c1 = 0; c1 < components; ++c1) {
 			for (int c2 = 0; c2<components; ++c2) {
-				if (csm.depends(c1, c2)) {
+				if (dependencies[c1 * components + c2]) {
 					logP += logPDependent;
 				}
-				if (csm.depends(c2, c1)) {
+				if (dependencies[c2 * components + c1]) {
 					logP += logPDependent;
 				}
 			}
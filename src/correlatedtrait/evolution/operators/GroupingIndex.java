@@ -0,0 +1,110 @@
+package correlatedtrait.evolution.operators;
+
+import beast.base.core.Description;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.util.Randomizer;
+
+@Description("Bitmask index of the members of every group of a groupings parameter, as used by "
+		+ "SplitOperator and MergeOperator. The index remembers the groupings it reflects, so "
+		+ "bringing it up to date after other operators or a restore only touches the entries that changed.")
+public class GroupingIndex {
+	/** number of long words per group mask **/
+	final int words;
+	final int groupCount;
+	/** members of group g in words g * words ... (g + 1) * words - 1 **/
+	final long [] masks;
+	/** groupings the masks reflect **/
+	final int [] current;
+	/** scratch space for members of a group **/
+	final int [] members;
+
+	public GroupingIndex(int entryCount, int groupCount) {
+		this.groupCount = groupCount;
+		words = (entryCount + 63) / 64;
+		masks = new long[groupCount * words];
+		current = new int[entryCount];
+		members = new int[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			current[i] = 0;
+			masks[i >> 6] |= 1L << i;
+		}
+	}
+
+	/** bring the masks up to date with groupings **/
+	public void update(IntegerParameter groupings) {
+		for (int i = 0; i < current.length; i++) {
+			int group = groupings.getNativeValue(i);
+			if (group != current[i]) {
+				masks[current[i] * words + (i >> 6)] &= ~(1L << i);
+				masks[group * words + (i >> 6)] |= 1L << i;
+				current[i] = group;
+			}
+		}
+	}
+
+	/** assign entry to group, in groupings as well as in the index **/
+	public void move(IntegerParameter groupings, int entry, int group) {
+		groupings.setValue(entry, group);
+		masks[current[entry] * words + (entry >> 6)] &= ~(1L << entry);
+		masks[group * words + (entry >> 6)] |= 1L << entry;
+		current[entry] = group;
+	}
+
+	public int size(int group) {
+		int size = 0;
+		for (int w = group * words; w < (group + 1) * words; w++) {
+			size += Long.bitCount(masks[w]);
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of members of group, which are stored in increasing
+	 *         order at the start of the array returned by getMembers()
+	 */
+	public int collectMembers(int group) {
+		int count = 0;
+		for (int w = 0; w < words; w++) {
+			long mask = masks[group * words + w];
+			while (mask != 0) {
+				members[count++] = (w << 6) + Long.numberOfTrailingZeros(mask);
+				mask &= mask - 1;
+			}
+		}
+		return count;
+	}
+
+	public int [] getMembers() {
+		return members;
+	}
+
+	/**
+	 * Draw a uniformly random non-empty proper subset of the first size
+	 * entries of getMembers(), as independent coin flips conditioned on the
+	 * split being non-trivial would, but without rejection: first draw the
+	 * size k of the subset with probability (size choose k) / (2^size - 2),
+	 * then a uniform subset of that size. The subset is moved to the start of
+	 * the members array.
+	 *
+	 * @return size of the subset
+	 */
+	public int drawProperSubset(int size) {
+		double u = Randomizer.nextDouble() * (Math.pow(2, size) - 2);
+		int k = 1;
+		// size choose k
+		double count = size;
+		while (k < size - 1 && u >= count) {
+			u -= count;
+			count = count * (size - k) / (k + 1);
+			k++;
+		}
+		// partial Fisher-Yates shuffle
+		for (int i = 0; i < k; i++) {
+			int j = i + Randomizer.nextInt(size - i);
+			int tmp = members[i];
+			members[i] = members[j];
+			members[j] = tmp;
+		}
+		return k;
+	}
+}
@@ -19,8 +19,6 @@
 
 package correlatedtrait.evolution.operators;
 
-import java.util.HashSet;
-
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -48,10 +46,15 @@ public class MergeOperator extends Operator {
 			(IntegerParameter) null);
 
 	Integer maxIndex;
+	/** members of each group **/
+	GroupingIndex index;
+	int[] trueGroupIndices;
 
 	@Override
 	public void initAndValidate() {
 		maxIndex = parametersInput.get().getDimension();
+		index = new GroupingIndex(groupingsInput.get().getDimension(), maxIndex);
+		trueGroupIndices = new int[maxIndex];
 		// Array-like RealParameters do not implement java.lang.iterable, so we
 		// must do the iteration by hand.
 		for (int groupIndex = groupingsInput.get().getDimension() - 1; groupIndex >= 0; --groupIndex) {
@@ -80,9 +83,9 @@ public class MergeOperator extends Operator {
 
 		int nGroups = 0;
 		int groupsOfSizeAtLeastTwo = 0;
-		int[] trueGroupIndices = new int[parametersInput.get().getDimension()];
-		int i = 0;
-		for (int size : sizesInput.get().getValues()) {
+		IntegerParameter sizes = sizesInput.get();
+		for (int i = 0; i < sizes.getDimension(); ++i) {
+			int size = sizes.getNativeValue(i);
 			if (size > 0) {
 				trueGroupIndices[nGroups] = i;
 				++nGroups;
@@ -90,7 +93,6 @@ public class MergeOperator extends Operator {
 					++groupsOfSizeAtLeastTwo;
 				}
 			}
-			++i;
 		}
 
 		if (nGroups < 2) {
@@ -107,26 +109,14 @@ public class MergeOperator extends Operator {
 		int removeIndex = trueGroupIndices[rawRemoveIndex];
 		int mergeIndex = trueGroupIndices[rawMergeIndex];
 
-		HashSet<Integer> mergeGroup = new HashSet<Integer>();
-		HashSet<Integer> removeGroup = new HashSet<Integer>();
-		i = 0;
-		for (int index : groupingsInput.get().getValues()) {
-			if (index == mergeIndex) {
-				mergeGroup.add(i);
-			}
-			if (index == removeIndex) {
-				removeGroup.add(i);
-			}
-			++i;
-		}
-
 		// Generate the MERGE
-		Integer mergeGroupSize = mergeGroup.size();
-		Integer removeGroupSize = removeGroup.size();
-
-		for (Integer toBeMerged : removeGroup) {
+		index.update(groupingsInput.get());
+		int mergeGroupSize = index.size(mergeIndex);
+		int removeGroupSize = index.collectMembers(removeIndex);
+		int[] members = index.getMembers();
+		for (int j = 0; j < removeGroupSize; ++j) {
 			// groupings[toBeMerged] = mergeIndex
-			groupingsInput.get().setValue(toBeMerged, mergeIndex);
+			index.move(groupingsInput.get(), members[j], mergeIndex);
 		}
 
 		Double logJacobian = Math.log(mergeGroupSize)
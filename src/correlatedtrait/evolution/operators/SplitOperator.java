@@ -19,8 +19,6 @@
 
 package correlatedtrait.evolution.operators;
 
-import java.util.HashSet;
-
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -49,10 +47,15 @@ public class SplitOperator extends Operator {
 			(IntegerParameter) null);
 
 	Integer maxIndex;
+	/** members of each group **/
+	GroupingIndex index;
+	int[] trueGroupIndices;
 
 	@Override
 	public void initAndValidate() {
 		maxIndex = parametersInput.get().getDimension();
+		index = new GroupingIndex(groupingsInput.get().getDimension(), maxIndex);
+		trueGroupIndices = new int[maxIndex];
 		// RealParameter does not implement java.lang.iterable, so we must do
 		// the iteration by hand.
 		for (int groupIndex = groupingsInput.get().getDimension() - 1; groupIndex >= 0; --groupIndex) {
@@ -77,10 +80,10 @@ public class SplitOperator extends Operator {
 		// is 1/2.
 		int nGroups = 0;
 		int nGroupsOfSizeAtLeastTwo = 0;
-		int[] trueGroupIndices = new int[parametersInput.get().getDimension()];
-		int i = 0;
-		Integer newIndex = null;
-		for (int size : sizesInput.get().getValues()) {
+		int newIndex = -1;
+		IntegerParameter sizes = sizesInput.get();
+		for (int i = 0; i < sizes.getDimension(); ++i) {
+			int size = sizes.getNativeValue(i);
 			if (size > 0) {
 				++nGroups;
 				if (size > 1) {
@@ -88,14 +91,13 @@ public class SplitOperator extends Operator {
 					++nGroupsOfSizeAtLeastTwo;
 				}
 			} else {
-				if (newIndex == null) {
+				if (newIndex < 0) {
 					newIndex = i;
 				}
 			}
-			++i;
 		}
 		
-		if (newIndex == null) {
+		if (newIndex < 0) {
 			// System.out.printf("Split: Parameter space exhausted\n");
 			return Double.NEGATIVE_INFINITY;
 		}
@@ -108,45 +110,19 @@ public class SplitOperator extends Operator {
 		int rawSplitIndex = Randomizer.nextInt(nGroupsOfSizeAtLeastTwo);
 		int splitIndex = trueGroupIndices[rawSplitIndex];
 
-		HashSet<Integer> splitGroup = new HashSet<Integer>();
-		i = 0;
-		for (int index : groupingsInput.get().getValues()) {
-			if (index == splitIndex) {
-				splitGroup.add(i);
-			}
-			++i;
+		// Generate the SPLIT: every non-trivial partition of the group into
+		// entries that stay and entries moving to the new group is equally
+		// likely, so draw one directly instead of flipping a coin for every
+		// entry until the partition is non-trivial.
+		index.update(groupingsInput.get());
+		int splitGroupSize = index.collectMembers(splitIndex);
+		int newGroupSize = index.drawProperSubset(splitGroupSize);
+		int oldGroupSize = splitGroupSize - newGroupSize;
+		int[] members = index.getMembers();
+		for (int j = 0; j < newGroupSize; ++j) {
+			index.move(groupingsInput.get(), members[j], newIndex);
 		}
 
-		int newGroupSize;
-		int oldGroupSize;
-		do {
-			// System.out.printf("Split: Generating a valid split...\n");
-			// Generate the SPLIT
-			newGroupSize = 0;
-			oldGroupSize = splitGroup.size();
-
-			// Go through the old list from the end, and either move or keep
-			// entries. Note that index 0 is definitely staying in the old
-			// group, so we only iterate while index > 0.
-			for (int j : splitGroup) {
-				if (Randomizer.nextBoolean()) {
-					groupingsInput.get().setValue(j, newIndex);
-					++newGroupSize;
-					--oldGroupSize;
-				} else {
-					// In case we run into this twice, make sure to reset the
-					// split index
-					groupingsInput.get().setValue(j, splitIndex);
-				}
-			}
-
-			// Moving an entry from one group to another means changing the
-			// corresponding value in groupings.
-			// In theory, there should be a way without rejections.
-			// But for correct-before-efficient reasons, just generate any
-			// partition, and reject the operator when the partition is trivial.
-		} while (newGroupSize == 0 || oldGroupSize == 0);
-
 		double logJacobian = Math.log(newGroupSize + oldGroupSize)
 				- Math.log(newGroupSize) - Math.log(oldGroupSize);
 
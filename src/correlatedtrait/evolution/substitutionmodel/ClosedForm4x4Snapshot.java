@@ -0,0 +1,343 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import beast.base.core.Description;
+
+@Description("Rate matrix snapshot for four states, as in the model for two binary traits, that calculates "
+		+ "transition probabilities in closed form instead of through a general eigen decomposition. "
+		+ "Rows of the rate matrix Q sum to zero, so one eigenvalue is zero and the other three are "
+		+ "roots of a cubic, which are solved analytically and may include a complex conjugate pair. "
+		+ "exp(Qt) is then the Newton interpolation polynomial of exp(xt) through the eigenvalues "
+		+ "evaluated at Q. The matrix products of that polynomial are calculated once per snapshot, so "
+		+ "for a branch only four scalar divided differences need to be calculated.")
+public class ClosedForm4x4Snapshot extends RateMatrixSnapshot {
+	/**
+	 * minimum distance, relative to the largest eigenvalue, between eigenvalues that appear
+	 * in the denominator of a divided difference. Closer eigenvalues lose too much precision,
+	 * and newInstance() returns null for them. Two levels of divided differences lose about
+	 * 1/SEPARATION^2 in precision, so at 1e-2 transition probabilities are accurate to about 1e-11.
+	 */
+	final static double SEPARATION = 1e-2;
+	/** below this absolute value divided differences of neighbouring nodes use a Taylor series **/
+	final static double SERIES_THRESHOLD = 0.5;
+	/** number of terms of the Taylor series, enough for double precision below SERIES_THRESHOLD **/
+	final static int SERIES_TERMS = 14;
+	final static double [] INVERSE = new double[SERIES_TERMS + 2];
+	final static double [] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+	/** scratch space used while calculating divided differences, and number of coefficients per distance **/
+	final static int WORK_SIZE = 12, COEFFICIENTS = 5;
+	static {
+		for (int n = 1; n < INVERSE.length; n++) {
+			INVERSE[n] = 1.0 / n;
+		}
+	}
+
+	/** eigenvalues, apart from the zero eigenvalue, in order of interpolation **/
+	final double x2Re, x2Im, x3Re, x3Im, x4Re, x4Im;
+	/** inverses of differences between eigenvalues used in divided differences **/
+	final double inv2Re, inv2Im, inv32Re, inv32Im, inv43Re, inv43Im;
+	final double inv3Re, inv3Im, inv42Re, inv42Im, inv4Re, inv4Im;
+	/** Q (Q - x2 I) and Q (Q - x2 I) (Q - x3 I), real and imaginary parts **/
+	final double [] m2Re, m2Im, m3Re, m3Im;
+	final boolean real;
+
+	/**
+	 * @return snapshot for 4x4 rate matrix, or null if eigenvalues are too close to each
+	 * other to calculate transition probabilities accurately in closed form
+	 */
+	public static ClosedForm4x4Snapshot newInstance(long version, double [][] rateMatrix, double [] frequencies) {
+		if (rateMatrix.length != 4) {
+			throw new IllegalArgumentException("Expected rate matrix of 4 states, not " + rateMatrix.length);
+		}
+		double [] roots = nonZeroEigenValues(rateMatrix);
+
+		double scale = 0;
+		for (int i = 0; i < 3; i++) {
+			scale = Math.max(scale, Math.hypot(roots[2 * i], roots[2 * i + 1]));
+		}
+		// choose order of interpolation nodes that keeps denominators of divided differences furthest from 0
+		int [][] orders = {{0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}};
+		int [] best = null;
+		double bestSeparation = -1;
+		for (int [] order : orders) {
+			double r2 = roots[2 * order[0]], i2 = roots[2 * order[0] + 1];
+			double r3 = roots[2 * order[1]], i3 = roots[2 * order[1] + 1];
+			double r4 = roots[2 * order[2]], i4 = roots[2 * order[2] + 1];
+			double separation = Math.min(Math.hypot(r3, i3), Math.min(Math.hypot(r4 - r2, i4 - i2), Math.hypot(r4, i4)));
+			if (separation > bestSeparation) {
+				bestSeparation = separation;
+				best = order;
+			}
+		}
+		if (scale == 0 || bestSeparation < SEPARATION * scale) {
+			return null;
+		}
+		double [] x = new double[6];
+		for (int i = 0; i < 3; i++) {
+			x[2 * i] = roots[2 * best[i]];
+			x[2 * i + 1] = roots[2 * best[i] + 1];
+		}
+		return new ClosedForm4x4Snapshot(version, rateMatrix, frequencies, x);
+	}
+
+	private ClosedForm4x4Snapshot(long version, double [][] rateMatrix, double [] frequencies, double [] x) {
+		super(version, rateMatrix, frequencies);
+		x2Re = x[0]; x2Im = x[1];
+		x3Re = x[2]; x3Im = x[3];
+		x4Re = x[4]; x4Im = x[5];
+		real = x2Im == 0 && x3Im == 0 && x4Im == 0;
+
+		double [] inv = new double[2];
+		inverse(x2Re, x2Im, inv); inv2Re = inv[0]; inv2Im = inv[1];
+		inverse(x3Re - x2Re, x3Im - x2Im, inv); inv32Re = inv[0]; inv32Im = inv[1];
+		inverse(x4Re - x3Re, x4Im - x3Im, inv); inv43Re = inv[0]; inv43Im = inv[1];
+		inverse(x3Re, x3Im, inv); inv3Re = inv[0]; inv3Im = inv[1];
+		inverse(x4Re - x2Re, x4Im - x2Im, inv); inv42Re = inv[0]; inv42Im = inv[1];
+		inverse(x4Re, x4Im, inv); inv4Re = inv[0]; inv4Im = inv[1];
+
+		final double [] q = this.rateMatrix;
+		double [] q2 = new double[16];
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				double sum = 0;
+				for (int k = 0; k < 4; k++) {
+					sum += q[i * 4 + k] * q[k * 4 + j];
+				}
+				q2[i * 4 + j] = sum;
+			}
+		}
+		m2Re = new double[16];
+		m2Im = new double[16];
+		for (int i = 0; i < 16; i++) {
+			m2Re[i] = q2[i] - x2Re * q[i];
+			m2Im[i] = -x2Im * q[i];
+		}
+		// M3 = M2 Q - x3 M2
+		m3Re = new double[16];
+		m3Im = new double[16];
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				double re = 0, im = 0;
+				for (int k = 0; k < 4; k++) {
+					re += m2Re[i * 4 + k] * q[k * 4 + j];
+					im += m2Im[i * 4 + k] * q[k * 4 + j];
+				}
+				int u = i * 4 + j;
+				m3Re[u] = re - (x3Re * m2Re[u] - x3Im * m2Im[u]);
+				m3Im[u] = im - (x3Re * m2Im[u] + x3Im * m2Re[u]);
+			}
+		}
+	}
+
+	/**
+	 * Roots of det(xI - Q) / x = x^3 - e1 x^2 + e2 x - e3, where ek is the sum of principal minors of size k.
+	 * @return real and imaginary parts of the three roots
+	 */
+	static double [] nonZeroEigenValues(double [][] q) {
+		double e1 = 0, e2 = 0, e3 = 0;
+		for (int i = 0; i < 4; i++) {
+			e1 += q[i][i];
+			for (int j = i + 1; j < 4; j++) {
+				e2 += q[i][i] * q[j][j] - q[i][j] * q[j][i];
+				for (int k = j + 1; k < 4; k++) {
+					e3 += q[i][i] * (q[j][j] * q[k][k] - q[j][k] * q[k][j])
+						- q[i][j] * (q[j][i] * q[k][k] - q[j][k] * q[k][i])
+						+ q[i][k] * (q[j][i] * q[k][j] - q[j][j] * q[k][i]);
+				}
+			}
+		}
+		return cubicRoots(-e1, e2, -e3);
+	}
+
+	/**
+	 * Roots of x^3 + a x^2 + b x + c, solved analytically and polished by Newton iteration.
+	 * @return real and imaginary parts of the three roots
+	 */
+	static double [] cubicRoots(double a, double b, double c) {
+		double [] roots = new double[6];
+		double shift = -a / 3;
+		// depressed cubic y^3 + p y + q with x = y + shift
+		double p = b - a * a / 3;
+		double q = 2 * a * a * a / 27 - a * b / 3 + c;
+		double discriminant = q * q / 4 + p * p * p / 27;
+		if (discriminant <= 0) {
+			// three real roots
+			if (p == 0) {
+				roots[0] = roots[2] = roots[4] = polish(shift, a, b, c);
+				return roots;
+			}
+			double r = 2 * Math.sqrt(-p / 3);
+			double cos = 3 * q / (p * r);
+			double phi = Math.acos(Math.max(-1, Math.min(1, cos))) / 3;
+			for (int k = 0; k < 3; k++) {
+				roots[2 * k] = polish(r * Math.cos(phi - 2 * Math.PI * k / 3) + shift, a, b, c);
+			}
+			return roots;
+		}
+		// one real root and a complex conjugate pair (Cardano)
+		double t = -q / 2, s = Math.sqrt(discriminant);
+		double u = Math.cbrt(t >= 0 ? t + s : t - s);
+		double v = u == 0 ? 0 : -p / (3 * u);
+		double root = polish(u + v + shift, a, b, c);
+		roots[0] = root;
+		// deflate to x^2 + B x + C
+		double bq = a + root;
+		double cq = Math.abs(root) > Math.abs(bq) * 1e-3 && root != 0 ? -c / root : b + bq * root;
+		double re = -bq / 2;
+		double d = re * re - cq;
+		if (d < 0) {
+			roots[2] = roots[4] = re;
+			roots[3] = Math.sqrt(-d);
+			roots[5] = -roots[3];
+		} else {
+			// rounding can make a near double root real
+			double x = re + (re >= 0 ? Math.sqrt(d) : -Math.sqrt(d));
+			roots[2] = x;
+			roots[4] = x == 0 ? 0 : cq / x;
+		}
+		return roots;
+	}
+
+	private static double polish(double x, double a, double b, double c) {
+		for (int i = 0; i < 2; i++) {
+			double f = ((x + a) * x + b) * x + c;
+			double df = (3 * x + 2 * a) * x + b;
+			if (df == 0) {
+				break;
+			}
+			x -= f / df;
+		}
+		return x;
+	}
+
+	@Override
+	public void getTransitionProbabilities(double distance, double [] matrix, int offset) {
+		double [] w = getScratch(WORK_SIZE + COEFFICIENTS);
+		coefficients(distance, w, WORK_SIZE);
+		combine(w, WORK_SIZE, matrix, offset);
+	}
+
+	@Override
+	public void getTransitionProbabilities(double [] distances, int count, double [] matrices, int offset) {
+		double [] w = getScratch(WORK_SIZE + COEFFICIENTS * count);
+		// first all scalar work, then the matrices in a loop without branches
+		for (int b = 0; b < count; b++) {
+			coefficients(distances[b], w, WORK_SIZE + COEFFICIENTS * b);
+		}
+		for (int b = 0; b < count; b++) {
+			combine(w, WORK_SIZE + COEFFICIENTS * b, matrices, offset + 16 * b);
+		}
+	}
+
+	/**
+	 * calculate divided differences f[0,x2], f[0,x2,x3] and f[0,x2,x3,x4] of exp(xt) and store them
+	 * in c from position at, using c[0] to c[WORK_SIZE - 1] as work space
+	 */
+	private void coefficients(double t, double [] c, int at) {
+		// E_k = exp(x_k t)
+		exp(x2Re * t, x2Im * t, c, 0);
+		exp(x3Re * t, x3Im * t, c, 2);
+		exp(x4Re * t, x4Im * t, c, 4);
+		final double e2Re = c[0], e2Im = c[1], e3Re = c[2], e3Im = c[3], e4Re = c[4], e4Im = c[5];
+
+		// first order divided differences f[0,x2], f[x2,x3], f[x3,x4]
+		divided(1, 0, e2Re, e2Im, x2Re * t, x2Im * t, inv2Re, inv2Im, t, c, 6);
+		divided(e2Re, e2Im, e3Re, e3Im, (x3Re - x2Re) * t, (x3Im - x2Im) * t, inv32Re, inv32Im, t, c, 8);
+		divided(e3Re, e3Im, e4Re, e4Im, (x4Re - x3Re) * t, (x4Im - x3Im) * t, inv43Re, inv43Im, t, c, 10);
+		final double f12Re = c[6], f12Im = c[7];
+
+		// f[0,x2,x3] = (f[x2,x3] - f[0,x2]) / x3
+		double dRe = c[8] - f12Re, dIm = c[9] - f12Im;
+		final double f123Re = dRe * inv3Re - dIm * inv3Im;
+		final double f123Im = dRe * inv3Im + dIm * inv3Re;
+		// f[x2,x3,x4] = (f[x3,x4] - f[x2,x3]) / (x4 - x2)
+		dRe = c[10] - c[8];
+		dIm = c[11] - c[9];
+		double f234Re = dRe * inv42Re - dIm * inv42Im;
+		double f234Im = dRe * inv42Im + dIm * inv42Re;
+		// f[0,x2,x3,x4] = (f[x2,x3,x4] - f[0,x2,x3]) / x4
+		dRe = f234Re - f123Re;
+		dIm = f234Im - f123Im;
+		c[at] = f12Re;
+		c[at + 1] = f123Re;
+		c[at + 2] = f123Im;
+		c[at + 3] = dRe * inv4Re - dIm * inv4Im;
+		c[at + 4] = dRe * inv4Im + dIm * inv4Re;
+	}
+
+	/** P = I + f[0,x2] Q + f[0,x2,x3] M2 + f[0,x2,x3,x4] M3, of which the imaginary part vanishes **/
+	private void combine(double [] c, int at, double [] matrix, int offset) {
+		final double f12 = c[at], f123Re = c[at + 1], f123Im = c[at + 2], f1234Re = c[at + 3], f1234Im = c[at + 4];
+		final double [] q = rateMatrix;
+		if (real) {
+			for (int i = 0; i < 16; i++) {
+				double p = IDENTITY[i] + f12 * q[i] + f123Re * m2Re[i] + f1234Re * m3Re[i];
+				// guard against round-off giving negative probabilities
+				matrix[offset + i] = Math.max(0.0, p);
+			}
+		} else {
+			for (int i = 0; i < 16; i++) {
+				double p = IDENTITY[i] + f12 * q[i]
+						+ f123Re * m2Re[i] - f123Im * m2Im[i]
+						+ f1234Re * m3Re[i] - f1234Im * m3Im[i];
+				matrix[offset + i] = Math.max(0.0, p);
+			}
+		}
+	}
+
+	/**
+	 * Divided difference (exp(x' t) - exp(x t)) / (x' - x) given ea = exp(x t), eb = exp(x' t),
+	 * z = (x' - x) t and inv = 1 / (x' - x). When z is small, this is calculated as
+	 * exp(x t) t (exp(z) - 1) / z with a Taylor series to avoid cancellation.
+	 * The result is stored in w at offset.
+	 */
+	private static void divided(double eaRe, double eaIm, double ebRe, double ebIm, double zRe, double zIm,
+			double invRe, double invIm, double t, double [] w, int offset) {
+		if (zRe * zRe + zIm * zIm >= SERIES_THRESHOLD * SERIES_THRESHOLD) {
+			double dRe = ebRe - eaRe, dIm = ebIm - eaIm;
+			w[offset] = dRe * invRe - dIm * invIm;
+			w[offset + 1] = dRe * invIm + dIm * invRe;
+			return;
+		}
+		double sRe, sIm;
+		if (zIm == 0) {
+			sRe = zRe == 0 ? 1.0 : Math.expm1(zRe) / zRe;
+			sIm = 0;
+		} else {
+			// (exp(z) - 1) / z = sum_n z^n / (n+1)!, Horner scheme
+			sRe = 1.0;
+			sIm = 0;
+			for (int n = SERIES_TERMS; n >= 1; n--) {
+				double re = sRe * zRe - sIm * zIm;
+				double im = sRe * zIm + sIm * zRe;
+				sRe = 1.0 + re * INVERSE[n + 1];
+				sIm = im * INVERSE[n + 1];
+			}
+		}
+		sRe *= t;
+		sIm *= t;
+		w[offset] = eaRe * sRe - eaIm * sIm;
+		w[offset + 1] = eaRe * sIm + eaIm * sRe;
+	}
+
+	private static void exp(double re, double im, double [] w, int offset) {
+		double r = Math.exp(re);
+		if (im == 0) {
+			w[offset] = r;
+			w[offset + 1] = 0;
+		} else {
+			w[offset] = r * Math.cos(im);
+			w[offset + 1] = r * Math.sin(im);
+		}
+	}
+
+	private static void inverse(double re, double im, double [] inv) {
+		double norm = re * re + im * im;
+		if (norm == 0) {
+			// only used where the Taylor series applies
+			inv[0] = inv[1] = 0;
+			return;
+		}
+		inv[0] = re / norm;
+		inv[1] = -im / norm;
+	}
+}
@@ -20,6 +20,7 @@ package correlatedtrait.evolution.substitutionmodel;
 
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
@@ -31,7 +32,9 @@ import correlatedtrait.evolution.alignment.CompoundAlignment;
 import correlatedtrait.evolution.alignment.CompoundDataType;
 import correlatedtrait.util.Selector;
 import beast.base.evolution.substitutionmodel.ComplexSubstitutionModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Node;
 
 @Description("Specifies transition probability matrix for a collection of multiple characters."
 		+ " At every infinitesimal time step, only one component can change values, so some transition rates are 0, the others arbitrary"
@@ -57,6 +60,23 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 	
 	Function rates;
 	protected int nonzeroTransitions = 0;
+	/** state that every rate of the rates input leads to, see setupTargets() **/
+	protected int[] targets;
+	/** current values of the rates input **/
+	protected double[] rateValues;
+
+	/** published state of the model, null when parameters changed since it was created **/
+	protected volatile RateMatrixSnapshot snapshot;
+	protected RateMatrixSnapshot storedSnapshot;
+	protected long snapshotVersion = 0;
+	/** counts changes of rates or frequencies, and the value dependencies was calculated for **/
+	private volatile long modelVersion = 0;
+	private long dependencyVersion = -1;
+	private boolean[] dependencies;
+	/** per thread buffer of distances for batched transition probability calculations **/
+	private final ThreadLocal<double[]> distanceBuffer = ThreadLocal.withInitial(() -> new double[0]);
+	/** snapshot that eigenDecomposition belongs to **/
+	private RateMatrixSnapshot eigenDecompositionSnapshot;
 
 	public CorrelatedSubstitutionModel() {}
 	public CorrelatedSubstitutionModel(IntegerParameter shape, CompoundAlignment characters, Selector rates, Frequencies freqs) {
@@ -130,6 +150,8 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 		relativeRates = new double[nrOfStates * (nrOfStates-1)];
 		storedRelativeRates = new double[nrOfStates * (nrOfStates-1)];
 		rates = ratesInput.get();
+		rateValues = new double[nrOfStates * nonzeroTransitions];
+		setupTargets();
 	} // initAndValidate
 
 	public Integer[] getShape() {
@@ -137,36 +159,62 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 	}
 
 	
+	/**
+	 * Determine which transitions have non-zero rates: those changing exactly one component. Rates
+	 * from a state are ordered by the state they go to, so for two binary traits the rates are
+	 * 00->01, 00->10, 01->00, 01->11, 10->00, 10->11, 11->01, 11->10.
+	 */
+	protected void setupTargets() {
+		targets = new int[nrOfStates * nonzeroTransitions];
+		for (int from = 0; from < nrOfStates; from++) {
+			int[] fromStates = CompoundDataType.compoundState2componentStates(shape, from);
+			int k = 0;
+			for (int to = 0; to < nrOfStates; to++) {
+				int[] toStates = CompoundDataType.compoundState2componentStates(shape, to);
+				int changes = 0;
+				for (int c = 0; c < shape.length; c++) {
+					if (fromStates[c] != toStates[c]) {
+						changes++;
+					}
+				}
+				if (changes == 1) {
+					targets[from * nonzeroTransitions + k++] = to;
+				}
+			}
+		}
+	}
+
+	/** copy the rates input into rateValues, in bulk if it is a Selector **/
+	protected void readRates() {
+		if (rates instanceof Selector) {
+			((Selector) rates).getArrayValues(rateValues);
+		} else {
+			for (int i = 0; i < rateValues.length; i++) {
+				rateValues[i] = rates.getArrayValue(i);
+			}
+		}
+	}
+
+	/** state to which the rate with given index of the rates input applies **/
+	public int getTarget(int rateIndex) {
+		return targets[rateIndex];
+	}
+
 	@Override
-	public void setupRelativeRates() {        
-        relativeRates[0] = this.rates.getArrayValue(0);
-        relativeRates[1] = this.rates.getArrayValue(1);
-        relativeRates[2] = 0;
-        relativeRates[3] = this.rates.getArrayValue(2);
-        relativeRates[4] = 0;
-        relativeRates[5] = this.rates.getArrayValue(3);
-        relativeRates[6] = this.rates.getArrayValue(4);
-        relativeRates[7] = 0;
-        relativeRates[8] = this.rates.getArrayValue(5);
-        relativeRates[9] = 0;
-        relativeRates[10] = this.rates.getArrayValue(6);
-        relativeRates[11] = this.rates.getArrayValue(7);
+	public void setupRelativeRates() {
+		setupRelativeRates(relativeRates);
 	}
 	
 	@Override
 	protected void setupRelativeRates(double[] rates) {
-        rates[0] = this.rates.getArrayValue(0);
-        rates[1] = this.rates.getArrayValue(1);
-        rates[2] = 0;
-        rates[3] = this.rates.getArrayValue(2);
-        rates[4] = 0;
-        rates[5] = this.rates.getArrayValue(3);
-        rates[6] = this.rates.getArrayValue(4);
-        rates[7] = 0;
-        rates[8] = this.rates.getArrayValue(5);
-        rates[9] = 0;
-        rates[10] = this.rates.getArrayValue(6);
-        rates[11] = this.rates.getArrayValue(7);
+		// relative rates are the off-diagonal entries of the rate matrix, row by row
+		readRates();
+		Arrays.fill(rates, 0.0);
+		for (int i = 0; i < targets.length; i++) {
+			int from = i / nonzeroTransitions;
+			int to = targets[i];
+			rates[from * (nrOfStates - 1) + (to < from ? to : to - 1)] = rateValues[i];
+		}
 	}
 	
 	/**
@@ -180,14 +228,10 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 
 		double[] fFreqs = frequencies.getFreqs();
 
-		rateMatrix[0][1] = this.rates.getArrayValue(0);
-		rateMatrix[0][2] = this.rates.getArrayValue(1);
-		rateMatrix[1][0] = this.rates.getArrayValue(2);
-		rateMatrix[1][3] = this.rates.getArrayValue(3);
-		rateMatrix[2][0] = this.rates.getArrayValue(4);
-		rateMatrix[2][3] = this.rates.getArrayValue(5);
-		rateMatrix[3][1] = this.rates.getArrayValue(6);
-		rateMatrix[3][2] = this.rates.getArrayValue(7);
+		readRates();
+		for (int i = 0; i < targets.length; i++) {
+			rateMatrix[i / nonzeroTransitions][targets[i]] = rateValues[i];
+		}
 
 		// bring in frequencies
 		for (int i = 0; i < nrOfStates; i++) {
@@ -221,9 +265,167 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 		// System.out.println(">" + Arrays.deepToString(rateMatrix));
 	} // setupRateMatrix
 
+	/**
+	 * Returns immutable snapshot of the model for the current parameter values. It is created
+	 * at most once per state change, after which all threads can share it without locking.
+	 */
+	public RateMatrixSnapshot getSnapshot() {
+		RateMatrixSnapshot s = snapshot;
+		if (s == null) {
+			synchronized (this) {
+				s = snapshot;
+				if (s == null) {
+					setupRelativeRates();
+					setupRateMatrix();
+					s = createSnapshot(++snapshotVersion);
+					updateMatrix = false;
+					snapshot = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * create snapshot from the current rate matrix. When components evolve independently, transition
+	 * probabilities are products of those of the components. Otherwise, for four states they are
+	 * calculated in closed form, falling back on scaling and squaring when eigenvalues (nearly)
+	 * coincide. Larger compound states have sparse rate matrices that are exponentiated by
+	 * uniformization, and only a single multi-state component requires an eigen decomposition.
+	 */
+	protected RateMatrixSnapshot createSnapshot(long version) {
+		RateMatrixSnapshot independent = KroneckerSnapshot.newInstance(version, rateMatrix, frequencies.getFreqs(), shape);
+		if (independent != null) {
+			return independent;
+		}
+		if (nrOfStates == 4) {
+			RateMatrixSnapshot s = ClosedForm4x4Snapshot.newInstance(version, rateMatrix, frequencies.getFreqs());
+			if (s == null) {
+				s = new PadeSnapshot(version, rateMatrix, frequencies.getFreqs());
+			}
+			return s;
+		}
+		if (nrOfStates > 4 && shape.length > 1) {
+			// only one component changes at a time, so the rate matrix is sparse
+			return new UniformizationSnapshot(version, rateMatrix, frequencies.getFreqs());
+		}
+		// decompose a copy, since some eigen systems overwrite the matrix
+		double [][] copy = new double[nrOfStates][];
+		for (int i = 0; i < nrOfStates; i++) {
+			copy[i] = rateMatrix[i].clone();
+		}
+		eigenDecomposition = eigenSystem.decomposeMatrix(copy);
+		RateMatrixSnapshot s = new EigenSnapshot(version, rateMatrix, frequencies.getFreqs(), eigenDecomposition);
+		eigenDecompositionSnapshot = s;
+		return s;
+	}
+
+	@Override
+	public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+		getSnapshot().getTransitionProbabilities((startTime - endTime) * rate, matrix);
+	}
+
+	/**
+	 * Calculate transition probability matrices for a number of branches in one pass, all from
+	 * the same snapshot of the model.
+	 * @param distances branch length times clock rate of each branch
+	 * @param count number of distances to use
+	 * @param matrices packed matrices, the one for distances[i] starts at i * nrOfStates * nrOfStates
+	 */
+	public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+		getSnapshot().getTransitionProbabilities(distances, count, matrices, 0);
+	}
+
+	/**
+	 * As getTransitionProbabilities(distances, count, matrices), but for every rate category of a
+	 * site model. The matrix for branch i and category j starts at
+	 * (i * categoryRates.length + j) * nrOfStates * nrOfStates.
+	 * @param branchLengths branch lengths in units of time
+	 * @param clockRate rate of a strict clock
+	 * @param categoryRates rates of the site model categories
+	 */
+	public void getTransitionProbabilities(double[] branchLengths, int count, double clockRate, double[] categoryRates, double[] matrices) {
+		int categoryCount = categoryRates.length;
+		double[] distances = distanceBuffer.get();
+		if (distances.length < count * categoryCount) {
+			distances = new double[count * categoryCount];
+			distanceBuffer.set(distances);
+		}
+		for (int i = 0; i < count; i++) {
+			double length = branchLengths[i] * clockRate;
+			for (int j = 0; j < categoryCount; j++) {
+				distances[i * categoryCount + j] = length * categoryRates[j];
+			}
+		}
+		getSnapshot().getTransitionProbabilities(distances, count * categoryCount, matrices, 0);
+	}
+
+	@Override
+	public EigenDecomposition getEigenDecomposition(Node node) {
+		// snapshots do not necessarily decompose the rate matrix, so do it on demand
+		RateMatrixSnapshot s = getSnapshot();
+		synchronized (this) {
+			if (eigenDecompositionSnapshot != s) {
+				eigenDecomposition = eigenSystem.decomposeMatrix(s.getRateMatrix());
+				eigenDecompositionSnapshot = s;
+			}
+			return eigenDecomposition;
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		snapshot = null;
+		modelVersion++;
+		return super.requiresRecalculation();
+	}
+
+	@Override
+	protected void store() {
+		storedSnapshot = snapshot;
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		snapshot = storedSnapshot;
+		modelVersion++;
+		super.restore();
+	}
+
+	/**
+	 * Check whether the evolution rates of `component` depend on the state of `dependsOn`.
+	 * Answered from the dependency matrix, which is only recalculated after rates or frequencies changed.
+	 */
 	public boolean depends(int component, int dependsOn) {
-		// Check whether the evolution rates of `component` depend on the state
-		// of `dependsOn`.
+		return getDependencyMatrix()[component * shape.length + dependsOn];
+	}
+
+	/**
+	 * Returns depends(c1, c2) for all pairs of components at index c1 * shape.length + c2.
+	 * The array is shared and must not be modified; it is replaced, not updated, when the model changes.
+	 */
+	public synchronized boolean[] getDependencyMatrix() {
+		if (dependencies == null || dependencyVersion != modelVersion) {
+			int k = shape.length;
+			boolean[] matrix = new boolean[k * k];
+			for (int c1 = 0; c1 < k; c1++) {
+				for (int c2 = 0; c2 < k; c2++) {
+					matrix[c1 * k + c2] = calcDepends(c1, c2);
+				}
+			}
+			dependencies = matrix;
+			dependencyVersion = modelVersion;
+		}
+		return dependencies;
+	}
+
+	/** increases whenever rates or frequencies may have changed **/
+	public long getModelVersion() {
+		return modelVersion;
+	}
+
+	private boolean calcDepends(int component, int dependsOn) {
 
 		// TODO: Currently, this gives the more generic result (“is dependent
 		// on”) when `frequencies` are not all equal, but compatible with
@@ -239,36 +441,31 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 
 		Function rates = ratesInput.get();
 
-		int componentMax = 0;
-		int componentMin = 0;
-		int dependsOnStep = nrOfStates;
-		for (int c = 0; c <= component || c <= dependsOn; ++c) {
-			if (c <= component) {
-				componentMin = componentMax;
-				componentMax += shape[c] - 1;
-			}
-			if (c <= dependsOn) {
-				dependsOnStep /= shape[c];
+		// Compare every rate changing `component` with the same change from the state in which `dependsOn`
+		// has another value. Both states are found by swapping the values of `dependsOn`, so that for
+		// component == dependsOn the rate of a -> b is compared with that of b -> a.
+		for (int i = 0; i < targets.length; i++) {
+			int from = i / nonzeroTransitions;
+			int[] fromStates = CompoundDataType.compoundState2componentStates(shape, from);
+			int[] toStates = CompoundDataType.compoundState2componentStates(shape, targets[i]);
+			if (fromStates[component] == toStates[component]) {
+				continue;
 			}
-		}
-
-		boolean[] checked = new boolean[nrOfStates];
-		for (int from = 0; from < nrOfStates; ++from) {
-			if (!checked[from]) {
-				checked[from] = true;
-				for (int componentTo = componentMin; componentTo < componentMax; ++componentTo) {
-					double thisRate = rates.getArrayValue(from * nonzeroTransitions + componentTo);
-					for (int other = 1; other < shape[dependsOn]; ++other) {
-						int otherIndex = from + dependsOnStep * other;
-						checked[otherIndex] = true;
-						// System.out.printf("> %d ?= %d\n", from, otherIndex);
-						double otherRate = rates.getArrayValue(otherIndex * nonzeroTransitions + componentTo);
-						if (thisRate != otherRate) {
-							// System.out.printf(" No: %f vs. %f\n", thisRate,
-							// otherRate);
-							return true;
-						}
-					}
+			double thisRate = rates.getArrayValue(i);
+			int value = fromStates[dependsOn];
+			for (int other = 0; other < shape[dependsOn]; ++other) {
+				if (other == value) {
+					continue;
+				}
+				int[] otherFromStates = fromStates.clone();
+				int[] otherToStates = toStates.clone();
+				otherFromStates[dependsOn] = other;
+				otherToStates[dependsOn] = swap(toStates[dependsOn], value, other);
+				double otherRate = rates.getArrayValue(getRateIndex(
+						CompoundDataType.componentState2compoundState(shape, otherFromStates),
+						CompoundDataType.componentState2compoundState(shape, otherToStates)));
+				if (thisRate != otherRate) {
+					return true;
 				}
 			}
 		}
@@ -276,22 +473,41 @@ public class CorrelatedSubstitutionModel extends ComplexSubstitutionModel implem
 		return false;
 	} // depends
 
+	/** x with the values a and b exchanged **/
+	private static int swap(int x, int a, int b) {
+		return x == a ? b : x == b ? a : x;
+	}
+
+	/** index in the rates input of the rate from one state to another that differs in one component **/
+	private int getRateIndex(int from, int to) {
+		for (int i = from * nonzeroTransitions; i < (from + 1) * nonzeroTransitions; i++) {
+			if (targets[i] == to) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("No rate from state " + from + " to state " + to);
+	}
+
 
 	@Override
 	public void init(PrintStream out) {
-		out.print("rate_00->01\t");
-		out.print("rate_00->10\t");
-		out.print("rate_01->00\t");
-		out.print("rate_01->11\t");
-		out.print("rate_10->00\t");
-		out.print("rate_10->11\t");
-		out.print("rate_11->01\t");
-		out.print("rate_11->10\t");
+		for (int i = 0; i < targets.length; i++) {
+			out.print("rate_" + stateLabel(i / nonzeroTransitions) + "->" + stateLabel(targets[i]) + "\t");
+		}
+	}
+
+	/** component states concatenated, e.g. 01 for state 1 of two binary traits **/
+	private String stateLabel(int state) {
+		StringBuilder b = new StringBuilder();
+		for (int componentState : CompoundDataType.compoundState2componentStates(shape, state)) {
+			b.append(componentState);
+		}
+		return b.toString();
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
-		for (int i = 0; i < 8; i++) {
+		for (int i = 0; i < targets.length; i++) {
 			out.print(this.rates.getArrayValue(i) + "\t");
 		}
 	}
@@ -0,0 +1,108 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+@Description("Rate matrix snapshot that calculates transition probabilities from an eigen decomposition "
+		+ "of the rate matrix, as ComplexSubstitutionModel does. Complex conjugate pairs of eigenvalues "
+		+ "are represented by 2x2 blocks in the (real) eigenvectors. The decomposition is turned into a "
+		+ "spectral sum P(t) = sum_k c_k(t) W_k of fixed matrices W_k, so that calculating a matrix is a "
+		+ "sequence of scaled vector additions.")
+public class EigenSnapshot extends RateMatrixSnapshot {
+	/** matrices W_k of the spectral sum, one per eigenvalue, packed **/
+	final double [] spectral;
+	/** eigenvalue a + bi belonging to each term, and whether the term uses cos(bt) or sin(bt) **/
+	final double [] termReal, termImag;
+	final boolean [] termSine;
+
+	public EigenSnapshot(long version, double [][] rateMatrix, double [] frequencies, EigenDecomposition eigenDecomposition) {
+		super(version, rateMatrix, frequencies);
+		final int n = stateCount;
+		double [] evec = eigenDecomposition.getEigenVectors();
+		double [] ievc = eigenDecomposition.getInverseEigenVectors();
+		double [] eval = eigenDecomposition.getEigenValues();
+		double [] evalImag = new double[n];
+		if (eval.length >= 2 * n) {
+			System.arraycopy(eval, n, evalImag, 0, n);
+		}
+
+		spectral = new double[n * n * n];
+		termReal = new double[n];
+		termImag = new double[n];
+		termSine = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			int w = k * n * n;
+			if (evalImag[k] == 0) {
+				// exp(at) evec_k ievc_k
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < n; j++) {
+						spectral[w + i * n + j] = evec[i * n + k] * ievc[k * n + j];
+					}
+				}
+				termReal[k] = eval[k];
+			} else {
+				// 2x2 block for conjugate pair a +/- bi gives
+				// exp(at) cos(bt) (evec_k ievc_k + evec_k2 ievc_k2) + exp(at) sin(bt) (evec_k ievc_k2 - evec_k2 ievc_k)
+				int k2 = k + 1;
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < n; j++) {
+						spectral[w + i * n + j] = evec[i * n + k] * ievc[k * n + j] + evec[i * n + k2] * ievc[k2 * n + j];
+						spectral[w + n * n + i * n + j] = evec[i * n + k] * ievc[k2 * n + j] - evec[i * n + k2] * ievc[k * n + j];
+					}
+				}
+				termReal[k] = termReal[k2] = eval[k];
+				termImag[k] = termImag[k2] = evalImag[k];
+				termSine[k2] = true;
+				k++;
+			}
+		}
+	}
+
+	@Override
+	public void getTransitionProbabilities(double distance, double [] matrix, int offset) {
+		final int n2 = stateCount * stateCount;
+		Arrays.fill(matrix, offset, offset + n2, 0.0);
+		for (int k = 0; k < stateCount; k++) {
+			addTerm(matrix, offset, coefficient(k, distance), k);
+		}
+		clamp(matrix, offset, n2);
+	}
+
+	@Override
+	public void getTransitionProbabilities(double [] distances, int count, double [] matrices, int offset) {
+		final int n2 = stateCount * stateCount;
+		Arrays.fill(matrices, offset, offset + count * n2, 0.0);
+		// one pass over the matrices per term, so W_k stays in cache
+		for (int k = 0; k < stateCount; k++) {
+			for (int b = 0; b < count; b++) {
+				addTerm(matrices, offset + b * n2, coefficient(k, distances[b]), k);
+			}
+		}
+		clamp(matrices, offset, count * n2);
+	}
+
+	private double coefficient(int k, double distance) {
+		double e = Math.exp(distance * termReal[k]);
+		if (termImag[k] == 0) {
+			return e;
+		}
+		return termSine[k] ? e * Math.sin(distance * termImag[k]) : e * Math.cos(distance * termImag[k]);
+	}
+
+	private void addTerm(double [] p, int offset, double c, int k) {
+		final int n2 = stateCount * stateCount;
+		final int w = k * n2;
+		for (int i = 0; i < n2; i++) {
+			p[offset + i] += c * spectral[w + i];
+		}
+	}
+
+	private static void clamp(double [] matrix, int offset, int length) {
+		// guard against round-off giving negative probabilities
+		for (int i = offset; i < offset + length; i++) {
+			matrix[i] = Math.max(0.0, matrix[i]);
+		}
+	}
+}
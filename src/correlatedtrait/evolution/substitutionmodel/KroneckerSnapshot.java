@@ -0,0 +1,190 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+@Description("Rate matrix snapshot for components that evolve independently. Then the rate matrix "
+		+ "is the Kronecker sum Q1 + Q2 + ... of the rate matrices of the components, and the transition "
+		+ "probabilities are the Kronecker product exp(Q1 t) x exp(Q2 t) x ..., so only exponentials of "
+		+ "the small component matrices are required. Two state components are done in closed form.")
+public class KroneckerSnapshot extends RateMatrixSnapshot {
+	/** number of states of each component, the first component varies slowest in the state number **/
+	final int [] shape;
+	/** rate matrix of each component **/
+	final double [][] componentRates;
+	/** snapshots of components with more than two states, null for two state components **/
+	final RateMatrixSnapshot [] componentSnapshots;
+	/** start of the matrix of each component in the scratch space **/
+	final int [] componentOffset;
+	final int scratchSize;
+	/** for entry u of the full matrix and component c, position of the factor in scratch space at u * shape.length + c **/
+	final int [] factorIndex;
+
+	private static final ThreadLocal<double []> factorScratch = ThreadLocal.withInitial(() -> new double[8]);
+
+	/**
+	 * @param shape number of states of every component
+	 * @return snapshot if rateMatrix is a Kronecker sum of component rate matrices, null otherwise
+	 */
+	public static KroneckerSnapshot newInstance(long version, double [][] rateMatrix, double [] frequencies, Integer [] shape) {
+		if (shape.length < 2) {
+			return null;
+		}
+		int n = rateMatrix.length;
+		int [] stride = strides(shape);
+		double [][] componentRates = new double[shape.length][];
+		for (int c = 0; c < shape.length; c++) {
+			componentRates[c] = new double[shape[c] * shape[c]];
+		}
+		boolean [][] seen = new boolean[shape.length][];
+		for (int c = 0; c < shape.length; c++) {
+			seen[c] = new boolean[shape[c] * shape[c]];
+		}
+
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				if (i == j) {
+					continue;
+				}
+				// find the component(s) in which i and j differ
+				int component = -1;
+				for (int c = 0; c < shape.length; c++) {
+					if (digit(i, c, shape, stride) != digit(j, c, shape, stride)) {
+						if (component >= 0) {
+							component = -2;
+							break;
+						}
+						component = c;
+					}
+				}
+				if (component < 0) {
+					if (rateMatrix[i][j] != 0) {
+						// more than one component changes at once
+						return null;
+					}
+					continue;
+				}
+				int u = digit(i, component, shape, stride) * shape[component] + digit(j, component, shape, stride);
+				if (!seen[component][u]) {
+					seen[component][u] = true;
+					componentRates[component][u] = rateMatrix[i][j];
+				} else if (componentRates[component][u] != rateMatrix[i][j]) {
+					// rate depends on the state of another component
+					return null;
+				}
+			}
+		}
+		for (int c = 0; c < shape.length; c++) {
+			int m = shape[c];
+			for (int a = 0; a < m; a++) {
+				double sum = 0;
+				for (int b = 0; b < m; b++) {
+					if (b != a) {
+						sum += componentRates[c][a * m + b];
+					}
+				}
+				componentRates[c][a * m + a] = -sum;
+			}
+		}
+		return new KroneckerSnapshot(version, rateMatrix, frequencies, shape, componentRates);
+	}
+
+	private KroneckerSnapshot(long version, double [][] rateMatrix, double [] frequencies, Integer [] shape, double [][] componentRates) {
+		super(version, rateMatrix, frequencies);
+		int k = shape.length;
+		this.shape = new int[k];
+		this.componentRates = componentRates;
+		componentSnapshots = new RateMatrixSnapshot[k];
+		componentOffset = new int[k];
+		int offset = 0;
+		for (int c = 0; c < k; c++) {
+			int m = shape[c];
+			this.shape[c] = m;
+			componentOffset[c] = offset;
+			offset += m * m;
+			if (m > 2) {
+				double [][] q = new double[m][m];
+				for (int a = 0; a < m; a++) {
+					System.arraycopy(componentRates[c], a * m, q[a], 0, m);
+				}
+				double [] uniform = new double[m];
+				Arrays.fill(uniform, 1.0 / m);
+				componentSnapshots[c] = new PadeSnapshot(version, q, uniform);
+			}
+		}
+		scratchSize = offset;
+
+		int [] stride = strides(shape);
+		int n = stateCount;
+		factorIndex = new int[n * n * k];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				for (int c = 0; c < k; c++) {
+					factorIndex[(i * n + j) * k + c] = componentOffset[c] +
+							digit(i, c, shape, stride) * shape[c] + digit(j, c, shape, stride);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void getTransitionProbabilities(double distance, double [] matrix, int offset) {
+		final int k = shape.length;
+		// not getScratch(), which component snapshots may use
+		double [] factors = factorScratch.get();
+		if (factors.length < scratchSize) {
+			factors = new double[scratchSize];
+			factorScratch.set(factors);
+		}
+		for (int c = 0; c < k; c++) {
+			if (componentSnapshots[c] == null) {
+				twoStateTransitionProbabilities(componentRates[c], distance, factors, componentOffset[c]);
+			} else {
+				componentSnapshots[c].getTransitionProbabilities(distance, factors, componentOffset[c]);
+			}
+		}
+
+		final int n2 = stateCount * stateCount;
+		for (int u = 0; u < n2; u++) {
+			double p = factors[factorIndex[u * k]];
+			for (int c = 1; c < k; c++) {
+				p *= factors[factorIndex[u * k + c]];
+			}
+			matrix[offset + u] = p;
+		}
+	}
+
+	/** exp(Qt) for a two state rate matrix q, stored in matrix at offset **/
+	private static void twoStateTransitionProbabilities(double [] q, double distance, double [] matrix, int offset) {
+		double a = q[1], b = q[2];
+		double total = a + b;
+		if (total <= 0) {
+			matrix[offset] = 1; matrix[offset + 1] = 0;
+			matrix[offset + 2] = 0; matrix[offset + 3] = 1;
+			return;
+		}
+		// 1 - exp(-(a+b)t), without cancellation for short branches
+		double change = -Math.expm1(-total * distance);
+		double p01 = a / total * change;
+		double p10 = b / total * change;
+		matrix[offset] = 1 - p01;
+		matrix[offset + 1] = p01;
+		matrix[offset + 2] = p10;
+		matrix[offset + 3] = 1 - p10;
+	}
+
+	private static int [] strides(Integer [] shape) {
+		int [] stride = new int[shape.length];
+		int s = 1;
+		for (int c = shape.length - 1; c >= 0; c--) {
+			stride[c] = s;
+			s *= shape[c];
+		}
+		return stride;
+	}
+
+	private static int digit(int state, int component, Integer [] shape, int [] stride) {
+		return (state / stride[component]) % shape[component];
+	}
+}
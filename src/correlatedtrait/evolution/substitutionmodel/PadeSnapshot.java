@@ -0,0 +1,145 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import beast.base.core.Description;
+
+@Description("Rate matrix snapshot that calculates transition probabilities as matrix exponential by "
+		+ "scaling and squaring with a degree 6 Pade approximant (Moler and Van Loan, method 3). "
+		+ "Slower than an eigen decomposition based method, but it does not break down when the "
+		+ "rate matrix has repeated eigenvalues or is not diagonalisable.")
+public class PadeSnapshot extends RateMatrixSnapshot {
+	final static int DEGREE = 6;
+	final static double [] PADE_COEFFICIENTS;
+	static {
+		PADE_COEFFICIENTS = new double[DEGREE + 1];
+		PADE_COEFFICIENTS[0] = 1.0;
+		for (int k = 1; k <= DEGREE; k++) {
+			PADE_COEFFICIENTS[k] = PADE_COEFFICIENTS[k - 1] * (DEGREE - k + 1) / (k * (2.0 * DEGREE - k + 1));
+		}
+	}
+
+	/** infinity norm of the rate matrix, used to determine number of squarings **/
+	final double norm;
+
+	public PadeSnapshot(long version, double [][] rateMatrix, double [] frequencies) {
+		super(version, rateMatrix, frequencies);
+		double max = 0;
+		for (int i = 0; i < stateCount; i++) {
+			double sum = 0;
+			for (int j = 0; j < stateCount; j++) {
+				sum += Math.abs(this.rateMatrix[i * stateCount + j]);
+			}
+			max = Math.max(max, sum);
+		}
+		norm = max;
+	}
+
+	@Override
+	public void getTransitionProbabilities(double distance, double [] matrix, int offset) {
+		final int n = stateCount;
+		final int n2 = n * n;
+		double [] scratch = getScratch(5 * n2);
+		// scratch holds A, A^k, numerator N, denominator D and a temporary, each n x n
+		final int a = 0, power = n2, num = 2 * n2, den = 3 * n2, tmp = 4 * n2;
+
+		int squarings = 0;
+		double scaledNorm = norm * Math.abs(distance);
+		if (scaledNorm > 0.5) {
+			squarings = Math.max(0, (int) Math.ceil(Math.log(scaledNorm / 0.5) / Math.log(2)));
+		}
+		double scale = distance / Math.pow(2, squarings);
+		for (int i = 0; i < n2; i++) {
+			scratch[a + i] = rateMatrix[i] * scale;
+		}
+
+		// N = sum c_k A^k, D = sum (-1)^k c_k A^k
+		for (int i = 0; i < n2; i++) {
+			double identity = (i % (n + 1) == 0) ? 1.0 : 0.0;
+			scratch[power + i] = scratch[a + i];
+			scratch[num + i] = identity + PADE_COEFFICIENTS[1] * scratch[a + i];
+			scratch[den + i] = identity - PADE_COEFFICIENTS[1] * scratch[a + i];
+		}
+		for (int k = 2; k <= DEGREE; k++) {
+			multiply(scratch, power, a, tmp, n);
+			System.arraycopy(scratch, tmp, scratch, power, n2);
+			double c = PADE_COEFFICIENTS[k];
+			double sign = (k % 2 == 0) ? c : -c;
+			for (int i = 0; i < n2; i++) {
+				scratch[num + i] += c * scratch[power + i];
+				scratch[den + i] += sign * scratch[power + i];
+			}
+		}
+
+		// solve D X = N, result in num
+		solve(scratch, den, num, n);
+
+		for (int s = 0; s < squarings; s++) {
+			multiply(scratch, num, num, tmp, n);
+			System.arraycopy(scratch, tmp, scratch, num, n2);
+		}
+		for (int i = 0; i < n2; i++) {
+			double p = scratch[num + i];
+			matrix[offset + i] = p < 0.0 ? 0.0 : p;
+		}
+	}
+
+	/** m[c..] = m[x..] * m[y..] for n x n matrices stored in m at given offsets **/
+	private static void multiply(double [] m, int x, int y, int c, int n) {
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double sum = 0;
+				for (int k = 0; k < n; k++) {
+					sum += m[x + i * n + k] * m[y + k * n + j];
+				}
+				m[c + i * n + j] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Solve D X = B by Gaussian elimination with partial pivoting, overwriting D and
+	 * replacing B by X. D and B are n x n matrices stored in m at given offsets.
+	 */
+	private static void solve(double [] m, int d, int b, int n) {
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < n; row++) {
+				if (Math.abs(m[d + row * n + col]) > Math.abs(m[d + pivot * n + col])) {
+					pivot = row;
+				}
+			}
+			if (pivot != col) {
+				swapRows(m, d, pivot, col, n);
+				swapRows(m, b, pivot, col, n);
+			}
+			double diagonal = m[d + col * n + col];
+			for (int row = col + 1; row < n; row++) {
+				double factor = m[d + row * n + col] / diagonal;
+				if (factor != 0) {
+					for (int j = col; j < n; j++) {
+						m[d + row * n + j] -= factor * m[d + col * n + j];
+					}
+					for (int j = 0; j < n; j++) {
+						m[b + row * n + j] -= factor * m[b + col * n + j];
+					}
+				}
+			}
+		}
+		for (int row = n - 1; row >= 0; row--) {
+			for (int j = 0; j < n; j++) {
+				double sum = m[b + row * n + j];
+				for (int k = row + 1; k < n; k++) {
+					sum -= m[d + row * n + k] * m[b + k * n + j];
+				}
+				m[b + row * n + j] = sum / m[d + row * n + row];
+			}
+		}
+	}
+
+	private static void swapRows(double [] m, int offset, int row1, int row2, int n) {
+		for (int j = 0; j < n; j++) {
+			double tmp = m[offset + row1 * n + j];
+			m[offset + row1 * n + j] = m[offset + row2 * n + j];
+			m[offset + row2 * n + j] = tmp;
+		}
+	}
+}
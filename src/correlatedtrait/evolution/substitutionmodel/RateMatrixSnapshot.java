@@ -0,0 +1,90 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import beast.base.core.Description;
+
+@Description("Immutable state of a substitution model for a particular value of its parameters: "
+		+ "the normalised rate matrix, the frequencies and whatever is needed to calculate transition "
+		+ "probabilities from them. Snapshots are never changed once published, so any number of "
+		+ "threads can calculate transition probabilities from one without locking.")
+abstract public class RateMatrixSnapshot {
+	/** increases every time the substitution model publishes a new snapshot **/
+	final protected long version;
+	final protected int stateCount;
+	/** normalised rate matrix, row major **/
+	final protected double [] rateMatrix;
+	final protected double [] frequencies;
+
+	/** per thread scratch space, so that calculating transition probabilities does not allocate **/
+	private static final ThreadLocal<double []> scratch = ThreadLocal.withInitial(() -> new double[16]);
+
+	protected RateMatrixSnapshot(long version, double [][] rateMatrix, double [] frequencies) {
+		this.version = version;
+		stateCount = rateMatrix.length;
+		this.rateMatrix = new double[stateCount * stateCount];
+		for (int i = 0; i < stateCount; i++) {
+			System.arraycopy(rateMatrix[i], 0, this.rateMatrix, i * stateCount, stateCount);
+		}
+		this.frequencies = frequencies.clone();
+	}
+
+	/**
+	 * calculate transition probability matrix for a branch of given length
+	 * @param distance branch length in expected substitutions (time * rate)
+	 * @param matrix stateCount x stateCount matrix, row major, to store result in
+	 */
+	public void getTransitionProbabilities(double distance, double [] matrix) {
+		getTransitionProbabilities(distance, matrix, 0);
+	}
+
+	/** as getTransitionProbabilities(distance, matrix), but store the matrix at offset **/
+	abstract public void getTransitionProbabilities(double distance, double [] matrices, int offset);
+
+	/**
+	 * calculate transition probability matrices for a number of branches in one go
+	 * @param distances branch lengths in expected substitutions
+	 * @param count number of distances to use
+	 * @param matrices packed matrices, the one for distances[i] is stored at offset + i * stateCount * stateCount
+	 */
+	public void getTransitionProbabilities(double [] distances, int count, double [] matrices, int offset) {
+		int matrixSize = stateCount * stateCount;
+		for (int i = 0; i < count; i++) {
+			getTransitionProbabilities(distances[i], matrices, offset + i * matrixSize);
+		}
+	}
+
+	/** returns scratch array of at least given size that is private to the calling thread **/
+	protected static double [] getScratch(int size) {
+		double [] array = scratch.get();
+		if (array.length < size) {
+			array = new double[size];
+			scratch.set(array);
+		}
+		return array;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	/** rate from state i to state j of the normalised rate matrix **/
+	public double getRate(int i, int j) {
+		return rateMatrix[i * stateCount + j];
+	}
+
+	/** returns copy of the normalised rate matrix **/
+	public double [][] getRateMatrix() {
+		double [][] matrix = new double[stateCount][stateCount];
+		for (int i = 0; i < stateCount; i++) {
+			System.arraycopy(rateMatrix, i * stateCount, matrix[i], 0, stateCount);
+		}
+		return matrix;
+	}
+
+	public double [] getFrequencies() {
+		return frequencies.clone();
+	}
+}
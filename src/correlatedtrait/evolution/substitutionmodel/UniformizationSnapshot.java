@@ -0,0 +1,128 @@
+package correlatedtrait.evolution.substitutionmodel;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+@Description("Rate matrix snapshot for large sparse rate matrices, as with three or more traits where only "
+		+ "one component changes at a time. Transition probabilities are calculated by uniformization: with "
+		+ "B = I + Q/mu and mu the largest exit rate, exp(Qt) = sum_k Poisson(k; mu t) B^k. The sum is truncated "
+		+ "once the remaining Poisson mass is below the tolerance, which bounds the error since B is stochastic. "
+		+ "Products with B only touch the non-zero rates; long branches are split into halves that are squared.")
+public class UniformizationSnapshot extends RateMatrixSnapshot {
+	/** bound on the absolute error of every transition probability **/
+	final static double TOLERANCE = 1e-12;
+	/** largest mu t handled by the series directly, longer branches are done by squaring **/
+	final static double MAX_EXPECTED_JUMPS = 8;
+
+	/** largest exit rate **/
+	final double mu;
+	/** B = I + Q/mu in compressed sparse row format **/
+	final int [] rowStart, column;
+	final double [] value;
+
+	public UniformizationSnapshot(long version, double [][] rateMatrix, double [] frequencies) {
+		super(version, rateMatrix, frequencies);
+		final int n = stateCount;
+		double max = 0;
+		int nonZero = 0;
+		for (int i = 0; i < n; i++) {
+			max = Math.max(max, -rateMatrix[i][i]);
+			for (int j = 0; j < n; j++) {
+				if (i == j || rateMatrix[i][j] != 0) {
+					nonZero++;
+				}
+			}
+		}
+		mu = max;
+		rowStart = new int[n + 1];
+		column = new int[nonZero];
+		value = new double[nonZero];
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			rowStart[i] = k;
+			for (int j = 0; j < n; j++) {
+				if (i == j || rateMatrix[i][j] != 0) {
+					column[k] = j;
+					value[k] = (i == j ? 1.0 : 0.0) + (mu > 0 ? rateMatrix[i][j] / mu : 0.0);
+					k++;
+				}
+			}
+		}
+		rowStart[n] = k;
+	}
+
+	@Override
+	public void getTransitionProbabilities(double distance, double [] matrix, int offset) {
+		final int n = stateCount;
+		final int n2 = n * n;
+		double lambda = mu * distance;
+		if (lambda <= 0) {
+			Arrays.fill(matrix, offset, offset + n2, 0.0);
+			for (int i = 0; i < n; i++) {
+				matrix[offset + i * n + i] = 1.0;
+			}
+			return;
+		}
+		int squarings = 0;
+		while (lambda > MAX_EXPECTED_JUMPS) {
+			lambda /= 2;
+			squarings++;
+		}
+		// every squaring at most doubles the error, but no point going below double precision
+		double tolerance = Math.max(TOLERANCE / (1 << Math.min(squarings, 30)), 1e-15);
+
+		double [] scratch = getScratch(3 * n2);
+		// scratch holds V = B^k, the next power, and the accumulated sum
+		int v = 0, next = n2, sum = 2 * n2;
+		Arrays.fill(scratch, 0, 3 * n2, 0.0);
+		for (int i = 0; i < n; i++) {
+			scratch[v + i * n + i] = 1.0;
+		}
+		double weight = Math.exp(-lambda);
+		double remaining = 1.0 - weight;
+		for (int i = 0; i < n; i++) {
+			scratch[sum + i * n + i] = weight;
+		}
+		for (int k = 1; remaining > tolerance; k++) {
+			// next = V B, touching only the non-zero entries of B
+			Arrays.fill(scratch, next, next + n2, 0.0);
+			for (int r = 0; r < n; r++) {
+				int row = r * n;
+				for (int i = 0; i < n; i++) {
+					double x = scratch[v + row + i];
+					if (x != 0) {
+						for (int e = rowStart[i]; e < rowStart[i + 1]; e++) {
+							scratch[next + row + column[e]] += x * value[e];
+						}
+					}
+				}
+			}
+			int tmp = v; v = next; next = tmp;
+			weight *= lambda / k;
+			remaining -= weight;
+			for (int i = 0; i < n2; i++) {
+				scratch[sum + i] += weight * scratch[v + i];
+			}
+			if (weight == 0) {
+				// underflow; only possible when the remaining mass is negligible
+				break;
+			}
+		}
+
+		for (int s = 0; s < squarings; s++) {
+			// square sum into the buffer of V, then swap
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					double x = 0;
+					for (int l = 0; l < n; l++) {
+						x += scratch[sum + i * n + l] * scratch[sum + l * n + j];
+					}
+					scratch[v + i * n + j] = x;
+				}
+			}
+			int tmp = v; v = sum; sum = tmp;
+		}
+		System.arraycopy(scratch, sum, matrix, offset, n2);
+	}
+}
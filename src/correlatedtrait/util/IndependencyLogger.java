@@ -36,16 +36,17 @@ public class IndependencyLogger extends BEASTObject implements Loggable {
 	@Override
 	public void log(long sample, PrintStream out) {
 		CorrelatedSubstitutionModel csm = csmInput.get();
-		int components = csmInput.get().getShape().length;
+		boolean[] dependencies = csm.getDependencyMatrix();
+		int components = csm.getShape().length;
 		for (int component1 = 0; component1 < components; ++component1) {
 			for (int component2 = 0; component2 < component1; ++component2) {
-				if (csm.depends(component1, component2)) {
+				if (dependencies[component1 * components + component2]) {
 					out.print(1);
 				} else {
 					out.print(0);
 				}
 				out.print("\t");				
-				if (csm.depends(component2, component1)) {
+				if (dependencies[component2 * components + component1]) {
 					out.print(1);
 				} else {
 					out.print(0);
@@ -56,6 +56,12 @@ public class Selector extends CalculationNode implements Loggable, Function {
 	protected IntegerParameter entries;
 	protected Integer maxIndex;
 
+	/** resolved values of all entries, valid unless needsUpdate is set **/
+	protected double[] values;
+	protected double[] storedValues;
+	protected boolean needsUpdate = true;
+	protected boolean storedNeedsUpdate = true;
+
 
 	public Selector() {		
 	}
@@ -95,6 +101,42 @@ public class Selector extends CalculationNode implements Loggable, Function {
 			}
 		}
 		// value = parametersInput[groupingsInput[entry]]
+		values = new double[entries.getDimension()];
+		storedValues = new double[entries.getDimension()];
+		needsUpdate = true;
+		storedNeedsUpdate = true;
+	}
+
+	/**
+	 * resolve the values of all entries. Not synchronised: a Selector shared between threads
+	 * should only be read once no thread changes its inputs.
+	 **/
+	protected void update() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = resolve(i);
+		}
+		needsUpdate = false;
+	}
+
+	private double resolve(int iDim) {
+		int index = groupingsInput.get().getNativeValue(
+				entries.getNativeValue(iDim));
+		if (index == -1) {
+			return minusOneIsSpecialInput.get().getArrayValue();
+		} else {
+			return parametersInput.get().getValue(index);
+		}
+	}
+
+	/**
+	 * Copy all values into target, which must have at least getDimension() entries.
+	 * Cheaper than calling getArrayValue(i) for every entry.
+	 */
+	public void getArrayValues(double[] target) {
+		if (needsUpdate) {
+			update();
+		}
+		System.arraycopy(values, 0, target, 0, values.length);
 	}
 
 	/**
@@ -108,24 +150,45 @@ public class Selector extends CalculationNode implements Loggable, Function {
 
 	@Override
 	public double getArrayValue() {
-		int index = groupingsInput.get().getNativeValue(
-				entries.getValue());
-		if (index == -1) {
-			return minusOneIsSpecialInput.get().getArrayValue();
-		} else {
-			return parametersInput.get().getValue(index);
-		}
+		return getArrayValue(0);
 	}
 
 	@Override
 	public double getArrayValue(int iDim) {
-		int index = groupingsInput.get().getNativeValue(
-				entries.getNativeValue(iDim));
-		if (index == -1) {
-			return minusOneIsSpecialInput.get().getArrayValue();
-		} else {
-			return parametersInput.get().getValue(index);
+		if (needsUpdate) {
+			update();
 		}
+		return values[iDim];
+	}
+
+	/**
+	 * CalculationNode implementation follows *
+	 */
+
+	@Override
+	protected boolean requiresRecalculation() {
+		needsUpdate = true;
+		return true;
+	}
+
+	@Override
+	protected void store() {
+		// store() can be called after a proposal, so values are not resolved here, since that would
+		// store the proposed values instead of those from before the proposal
+		System.arraycopy(values, 0, storedValues, 0, values.length);
+		storedNeedsUpdate = needsUpdate;
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		double[] tmp = values;
+		values = storedValues;
+		storedValues = tmp;
+		boolean tmpNeedsUpdate = needsUpdate;
+		needsUpdate = storedNeedsUpdate;
+		storedNeedsUpdate = tmpNeedsUpdate;
+		super.restore();
 	}
 
 	/**
@@ -48,5 +48,12 @@ public class SelectorSet extends Selector {
 		return 0;
 	}
 
+	@Override
+	public void getArrayValues(double[] target) {
+		for (int i = 0; i < getDimension(); ++i) {
+			target[i] = getArrayValue(i);
+		}
+	}
+
 
 }
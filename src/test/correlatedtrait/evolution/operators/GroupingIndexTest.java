@@ -0,0 +1,39 @@
+package test.correlatedtrait.evolution.operators;
+
+import org.junit.Test;
+
+import beast.base.util.Randomizer;
+import correlatedtrait.evolution.operators.GroupingIndex;
+import junit.framework.TestCase;
+
+public class GroupingIndexTest extends TestCase {
+
+	@Test
+	public void testProperSubsetsUniform() {
+		// SplitOperator's Hastings ratio assumes all 2^n - 2 non-trivial splits are equally likely
+		Randomizer.setSeed(127);
+		int n = 5;
+		int draws = 300000;
+		GroupingIndex index = new GroupingIndex(n, 2);
+		int [] counts = new int[1 << n];
+		for (int t = 0; t < draws; t++) {
+			int [] members = index.getMembers();
+			for (int i = 0; i < n; i++) {
+				members[i] = i;
+			}
+			int k = index.drawProperSubset(n);
+			assertTrue(k > 0 && k < n);
+			int subset = 0;
+			for (int i = 0; i < k; i++) {
+				subset |= 1 << members[i];
+			}
+			counts[subset]++;
+		}
+		assertEquals(0, counts[0]);
+		assertEquals(0, counts[(1 << n) - 1]);
+		double expected = draws / ((1 << n) - 2.0);
+		for (int subset = 1; subset < (1 << n) - 1; subset++) {
+			assertEquals(expected, counts[subset], 5 * Math.sqrt(expected));
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package test.correlatedtrait.evolution.substitutionmodel;
+
+import org.junit.Test;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import correlatedtrait.evolution.substitutionmodel.ClosedForm4x4Snapshot;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
+import correlatedtrait.evolution.substitutionmodel.EigenSnapshot;
+import correlatedtrait.evolution.substitutionmodel.PadeSnapshot;
+import junit.framework.TestCase;
+
+public class ClosedForm4x4SnapshotTest extends TestCase {
+	final static double [] FREQS = {0.25, 0.25, 0.25, 0.25};
+	final static double [] DISTANCES = {1e-6, 0.01, 0.1, 0.5, 1, 5, 50};
+
+	@Test
+	public void testAgainstPade() {
+		Randomizer.setSeed(123);
+
+		int closedForm = 0;
+		for (int k = 0; k < 1000; k++) {
+			double [][] qMatrix = newRandomMatrix();
+			ClosedForm4x4Snapshot snapshot = ClosedForm4x4Snapshot.newInstance(k, qMatrix, FREQS);
+			if (snapshot == null) {
+				continue;
+			}
+			closedForm++;
+			PadeSnapshot pade = new PadeSnapshot(k, qMatrix, FREQS);
+			double [] p = new double[16], expected = new double[16];
+			for (double distance : DISTANCES) {
+				snapshot.getTransitionProbabilities(distance, p);
+				pade.getTransitionProbabilities(distance, expected);
+				for (int i = 0; i < 16; i++) {
+					assertEquals(expected[i], p[i], 1e-10);
+				}
+			}
+		}
+		// only nearly coinciding eigenvalues are left to the fallback
+		assertTrue(closedForm > 950);
+	}
+
+	@Test
+	public void testComplexEigenValues() {
+		// cyclic rate matrix 0 -> 1 -> 3 -> 2 -> 0 has eigenvalues 0, -2, -1 +/- i
+		double [][] qMatrix = new double[4][4];
+		int [] next = {1, 3, 0, 2};
+		for (int i = 0; i < 4; i++) {
+			qMatrix[i][next[i]] = 1;
+			qMatrix[i][i] = -1;
+		}
+		ClosedForm4x4Snapshot snapshot = ClosedForm4x4Snapshot.newInstance(0, qMatrix, FREQS);
+		assertNotNull(snapshot);
+		PadeSnapshot pade = new PadeSnapshot(0, qMatrix, FREQS);
+		double [] p = new double[16], expected = new double[16];
+		for (double distance : DISTANCES) {
+			snapshot.getTransitionProbabilities(distance, p);
+			pade.getTransitionProbabilities(distance, expected);
+			for (int i = 0; i < 16; i++) {
+				assertEquals(expected[i], p[i], 1e-10);
+			}
+		}
+	}
+
+	@Test
+	public void testNearlyCoincidingEigenValues() {
+		// chain 0 -> 1 -> 2 -> 3 with rates 1, 1 + d, 1 + 2d has eigenvalues 0, -1, -1 - d, -1 - 2d, so
+		// eigenvalues that are not neighbours in the interpolation are 2d apart. Transition probabilities
+		// are divided differences over equally spaced nodes, which have a closed form without cancellation.
+		double [] p = new double[16], expected = new double[16];
+		for (double d : new double[] {0.05, 0.02, 0.0055}) {
+			double [][] qMatrix = newChain(1, 1 + d, 1 + 2 * d);
+			ClosedForm4x4Snapshot snapshot = ClosedForm4x4Snapshot.newInstance(0, qMatrix, FREQS);
+			assertNotNull(snapshot);
+			PadeSnapshot pade = new PadeSnapshot(0, qMatrix, FREQS);
+			for (double distance : DISTANCES) {
+				snapshot.getTransitionProbabilities(distance, p);
+				double e = Math.expm1(d * distance);
+				assertEquals(Math.exp(-(1 + d) * distance) * e / d, p[1], 1e-10);
+				assertEquals((1 + d) * Math.exp(-(1 + 2 * d) * distance) * e * e / (2 * d * d), p[2], 1e-10);
+				pade.getTransitionProbabilities(distance, expected);
+				for (int i = 0; i < 16; i++) {
+					assertEquals(expected[i], p[i], 1e-10);
+				}
+			}
+		}
+		// closer than SEPARATION is left to the fallback
+		for (double d : new double[] {0.005, 0.001, 1e-5}) {
+			assertNull(ClosedForm4x4Snapshot.newInstance(0, newChain(1, 1 + d, 1 + 2 * d), FREQS));
+		}
+
+		// eigenvalues -d and -2d close to the zero eigenvalue: 0 and -2d are not neighbours
+		for (double d : new double[] {0.05, 0.0055}) {
+			double [][] qMatrix = newChain(1, d, 2 * d);
+			ClosedForm4x4Snapshot snapshot = ClosedForm4x4Snapshot.newInstance(0, qMatrix, FREQS);
+			assertNotNull(snapshot);
+			PadeSnapshot pade = new PadeSnapshot(0, qMatrix, FREQS);
+			for (double distance : DISTANCES) {
+				snapshot.getTransitionProbabilities(distance, p);
+				pade.getTransitionProbabilities(distance, expected);
+				for (int i = 0; i < 16; i++) {
+					assertEquals(expected[i], p[i], 1e-10);
+				}
+			}
+		}
+		assertNull(ClosedForm4x4Snapshot.newInstance(0, newChain(1, 0.0045, 0.009), FREQS));
+	}
+
+	@Test
+	public void testModelAgainstEigenDecomposition() {
+		// transition probabilities of the model, through the closed form or its fallback, against those
+		// from BEAST's eigen decomposition of a rate matrix built from the rates by hand
+		Randomizer.setSeed(127);
+		for (int [] shape : new int[][] {{4}, {2, 2}}) {
+			int closedForm = 0;
+			for (int k = 0; k < 100; k++) {
+				int nonzeroTransitions = 0;
+				for (int size : shape) {
+					nonzeroTransitions += size - 1;
+				}
+				double [] rates = new double[4 * nonzeroTransitions];
+				for (int i = 0; i < rates.length; i++) {
+					rates[i] = -Math.log(Randomizer.nextDouble());
+				}
+				CorrelatedSubstitutionModel model = newModel(shape, rates);
+
+				double [][] qMatrix = newRateMatrix(shape, rates);
+				double [][] rateMatrix = model.getSnapshot().getRateMatrix();
+				for (int i = 0; i < 4; i++) {
+					for (int j = 0; j < 4; j++) {
+						assertEquals(qMatrix[i][j], rateMatrix[i][j], 1e-12);
+					}
+				}
+				if (model.getSnapshot() instanceof ClosedForm4x4Snapshot) {
+					closedForm++;
+				}
+
+				EigenSnapshot eigen = new EigenSnapshot(0, qMatrix, FREQS, model.getEigenDecomposition(null));
+				double [] p = new double[16], expected = new double[16];
+				for (double distance : DISTANCES) {
+					model.getTransitionProbabilities(null, distance, 0, 1.0, p);
+					eigen.getTransitionProbabilities(distance, expected);
+					for (int i = 0; i < 16; i++) {
+						assertEquals(expected[i], p[i], 1e-9);
+					}
+				}
+			}
+			assertTrue(closedForm > 90);
+		}
+	}
+
+	@Test
+	public void testRepeatedEigenValues() {
+		// all off-diagonal rates equal gives eigenvalue -4 three times, which requires the fallback
+		double [][] qMatrix = new double[4][4];
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				qMatrix[i][j] = i == j ? -3 : 1;
+			}
+		}
+		assertNull(ClosedForm4x4Snapshot.newInstance(0, qMatrix, FREQS));
+	}
+
+	// pure birth chain 0 -> 1 -> 2 -> 3, which has eigenvalues 0, -r0, -r1 and -r2
+	private double[][] newChain(double r0, double r1, double r2) {
+		double [] rates = {r0, r1, r2};
+		double [][] qMatrix = new double[4][4];
+		for (int i = 0; i < 3; i++) {
+			qMatrix[i][i] = -rates[i];
+			qMatrix[i][i + 1] = rates[i];
+		}
+		return qMatrix;
+	}
+
+	private CorrelatedSubstitutionModel newModel(int [] shape, double [] rates) {
+		String shapeValues = "", rateValues = "";
+		for (int size : shape) {
+			shapeValues += size + " ";
+		}
+		for (double rate : rates) {
+			rateValues += rate + " ";
+		}
+		IntegerParameter shapeParameter = new IntegerParameter();
+		shapeParameter.initByName("value", shapeValues.trim());
+		RealParameter rateParameter = new RealParameter();
+		rateParameter.initByName("value", rateValues.trim());
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.25 0.25 0.25 0.25");
+		CorrelatedSubstitutionModel model = new CorrelatedSubstitutionModel();
+		model.initByName("shape", shapeParameter, "rates", rateParameter, "frequencies", frequencies);
+		return model;
+	}
+
+	// normalised rate matrix with equal frequencies, where the rates from a state go to the states that
+	// differ in one component, in increasing order
+	private double[][] newRateMatrix(int [] shape, double [] rates) {
+		int nonzeroTransitions = rates.length / 4;
+		double [][] qMatrix = new double[4][4];
+		double total = 0;
+		for (int from = 0; from < 4; from++) {
+			int k = 0;
+			for (int to = 0; to < 4; to++) {
+				int changes = 0;
+				for (int c = 0, a = from, b = to; c < shape.length; c++) {
+					if (a % shape[c] != b % shape[c]) {
+						changes++;
+					}
+					a /= shape[c];
+					b /= shape[c];
+				}
+				if (changes == 1) {
+					qMatrix[from][to] = rates[from * nonzeroTransitions + k++] * 0.25;
+					qMatrix[from][from] -= qMatrix[from][to];
+				}
+			}
+			total -= qMatrix[from][from] * 0.25;
+		}
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				qMatrix[i][j] /= total;
+			}
+		}
+		return qMatrix;
+	}
+
+	// generate asymmetric Q matrix with 50% zeros and other rates drawn from exponential distribution
+	private double[][] newRandomMatrix() {
+		double [][] qMatrix = new double[4][4];
+		for (int i = 0; i < 4; i++) {
+			double sum = 0;
+			for (int j = 0; j < 4; j++) {
+				if (i != j && Randomizer.nextBoolean()) {
+					qMatrix[i][j] = -Math.log(Randomizer.nextDouble());
+					sum += qMatrix[i][j];
+				}
+			}
+			qMatrix[i][i] = -sum;
+		}
+		return qMatrix;
+	}
+}
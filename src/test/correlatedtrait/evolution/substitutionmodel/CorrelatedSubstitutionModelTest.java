@@ -0,0 +1,68 @@
+package test.correlatedtrait.evolution.substitutionmodel;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import correlatedtrait.evolution.alignment.CompoundDataType;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
+import junit.framework.TestCase;
+
+public class CorrelatedSubstitutionModelTest extends TestCase {
+	final static Integer [] SHAPE = {2, 3, 2};
+
+	@Test
+	public void testDependencyMatrix() {
+		// find out which state every rate leads to from a model with equal rates
+		double [] rates = new double[12 * 4];
+		Arrays.fill(rates, 1.0);
+		CorrelatedSubstitutionModel model = newModel(rates);
+		rates = new double[12 * 4];
+		for (int i = 0; i < rates.length; i++) {
+			int[] from = CompoundDataType.compoundState2componentStates(SHAPE, i / 4);
+			int[] to = CompoundDataType.compoundState2componentStates(SHAPE, model.getTarget(i));
+			if (from[0] != to[0]) {
+				// component 0 evolves faster when component 2 is in state 1
+				rates[i] = 1.0 + from[2];
+			} else if (from[1] != to[1]) {
+				// component 1 has a rate for each state it goes to, so depends on its own state
+				rates[i] = 0.5 + to[1];
+			} else {
+				rates[i] = 0.7;
+			}
+		}
+		model = newModel(rates);
+
+		boolean [][] expected = {
+				{false, false, true},
+				{false, true, false},
+				{false, false, false}};
+		for (int c1 = 0; c1 < 3; c1++) {
+			for (int c2 = 0; c2 < 3; c2++) {
+				assertEquals("component " + c1 + " on " + c2, expected[c1][c2], model.depends(c1, c2));
+			}
+		}
+	}
+
+	private CorrelatedSubstitutionModel newModel(double [] rates) {
+		String rateValues = "", freqValues = "";
+		for (double rate : rates) {
+			rateValues += rate + " ";
+		}
+		for (int i = 0; i < 12; i++) {
+			freqValues += (1.0 / 12) + " ";
+		}
+		IntegerParameter shapeParameter = new IntegerParameter();
+		shapeParameter.initByName("value", "2 3 2");
+		RealParameter rateParameter = new RealParameter();
+		rateParameter.initByName("value", rateValues.trim());
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqValues.trim());
+		CorrelatedSubstitutionModel model = new CorrelatedSubstitutionModel();
+		model.initByName("shape", shapeParameter, "rates", rateParameter, "frequencies", frequencies);
+		return model;
+	}
+}
@@ -0,0 +1,103 @@
+package test.correlatedtrait.evolution.substitutionmodel;
+
+import org.junit.Test;
+
+import beast.base.util.Randomizer;
+import correlatedtrait.evolution.alignment.CompoundDataType;
+import correlatedtrait.evolution.substitutionmodel.KroneckerSnapshot;
+import correlatedtrait.evolution.substitutionmodel.PadeSnapshot;
+import junit.framework.TestCase;
+
+public class KroneckerSnapshotTest extends TestCase {
+	final static double [] DISTANCES = {1e-6, 0.01, 0.1, 0.5, 1, 5, 50};
+	final static Integer [][] SHAPES = {{2, 2}, {2, 3}};
+
+	@Test
+	public void testAgainstPade() {
+		Randomizer.setSeed(137);
+		for (Integer [] shape : SHAPES) {
+			for (int k = 0; k < 20; k++) {
+				double [][] qMatrix = newIndependentRateMatrix(shape);
+				int n = qMatrix.length;
+				double [] freqs = newFrequencies(n);
+				KroneckerSnapshot snapshot = KroneckerSnapshot.newInstance(k, qMatrix, freqs, shape);
+				assertNotNull(snapshot);
+
+				PadeSnapshot pade = new PadeSnapshot(k, qMatrix, freqs);
+				double [] p = new double[n * n], expected = new double[n * n];
+				for (double distance : DISTANCES) {
+					snapshot.getTransitionProbabilities(distance, p);
+					pade.getTransitionProbabilities(distance, expected);
+					for (int i = 0; i < n * n; i++) {
+						assertEquals(expected[i], p[i], 3e-12);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDependentComponents() {
+		Randomizer.setSeed(139);
+		for (Integer [] shape : SHAPES) {
+			double [][] qMatrix = newIndependentRateMatrix(shape);
+			int n = qMatrix.length;
+			// the rate of 0 -> 1 in the last component becomes faster when the other components are not in state 0
+			int from = n - shape[shape.length - 1];
+			qMatrix[from][from + 1] += 0.5;
+			qMatrix[from][from] -= 0.5;
+			assertNull(KroneckerSnapshot.newInstance(0, qMatrix, newFrequencies(n), shape));
+		}
+
+		// a rate in which two components change at once
+		double [][] qMatrix = newIndependentRateMatrix(SHAPES[0]);
+		qMatrix[0][3] = 0.5;
+		qMatrix[0][0] -= 0.5;
+		assertNull(KroneckerSnapshot.newInstance(0, qMatrix, newFrequencies(4), SHAPES[0]));
+	}
+
+	private double [] newFrequencies(int n) {
+		double [] freqs = new double[n];
+		for (int i = 0; i < n; i++) {
+			freqs[i] = 1.0 / n;
+		}
+		return freqs;
+	}
+
+	// rate matrix of components that evolve independently, each with rates drawn from an exponential
+	// distribution, so that the rate of a change in one component does not depend on the others
+	private double[][] newIndependentRateMatrix(Integer [] shape) {
+		double [][][] componentRates = new double[shape.length][][];
+		int n = 1;
+		for (int c = 0; c < shape.length; c++) {
+			componentRates[c] = new double[shape[c]][shape[c]];
+			for (int a = 0; a < shape[c]; a++) {
+				for (int b = 0; b < shape[c]; b++) {
+					if (a != b) {
+						componentRates[c][a][b] = -Math.log(Randomizer.nextDouble());
+					}
+				}
+			}
+			n *= shape[c];
+		}
+		double [][] qMatrix = new double[n][n];
+		for (int from = 0; from < n; from++) {
+			int [] fromStates = CompoundDataType.compoundState2componentStates(shape, from);
+			for (int to = 0; to < n; to++) {
+				int [] toStates = CompoundDataType.compoundState2componentStates(shape, to);
+				int changed = -1, changes = 0;
+				for (int c = 0; c < shape.length; c++) {
+					if (fromStates[c] != toStates[c]) {
+						changed = c;
+						changes++;
+					}
+				}
+				if (changes == 1) {
+					qMatrix[from][to] = componentRates[changed][fromStates[changed]][toStates[changed]];
+					qMatrix[from][from] -= qMatrix[from][to];
+				}
+			}
+		}
+		return qMatrix;
+	}
+}
@@ -0,0 +1,85 @@
+package test.correlatedtrait.evolution.substitutionmodel;
+
+import org.junit.Test;
+
+import beast.base.util.Randomizer;
+import correlatedtrait.evolution.alignment.CompoundDataType;
+import correlatedtrait.evolution.substitutionmodel.PadeSnapshot;
+import correlatedtrait.evolution.substitutionmodel.UniformizationSnapshot;
+import junit.framework.TestCase;
+
+public class UniformizationSnapshotTest extends TestCase {
+	// the longest branches have more than 8 expected jumps, so are done by squaring
+	final static double [] DISTANCES = {1e-6, 0.01, 0.1, 0.5, 1, 5, 20, 50};
+	final static Integer [][] SHAPES = {{2, 2, 2}, {3, 2}, {2, 2, 2, 2}, {3, 3, 2}};
+
+	@Test
+	public void testAgainstPade() {
+		Randomizer.setSeed(131);
+		for (Integer [] shape : SHAPES) {
+			for (int k = 0; k < 20; k++) {
+				double [][] qMatrix = newRateMatrix(shape);
+				int n = qMatrix.length;
+				double [] freqs = new double[n];
+				double mu = 0;
+				for (int i = 0; i < n; i++) {
+					freqs[i] = 1.0 / n;
+					mu = Math.max(mu, -qMatrix[i][i]);
+				}
+				assertTrue(mu * DISTANCES[DISTANCES.length - 1] > 8);
+
+				UniformizationSnapshot snapshot = new UniformizationSnapshot(k, qMatrix, freqs);
+				PadeSnapshot pade = new PadeSnapshot(k, qMatrix, freqs);
+				double [] p = new double[n * n], expected = new double[n * n];
+				for (double distance : DISTANCES) {
+					snapshot.getTransitionProbabilities(distance, p);
+					pade.getTransitionProbabilities(distance, expected);
+					for (int i = 0; i < n * n; i++) {
+						assertEquals(expected[i], p[i], 3e-12);
+					}
+					for (int i = 0; i < n; i++) {
+						double sum = 0;
+						for (int j = 0; j < n; j++) {
+							sum += p[i * n + j];
+						}
+						assertEquals(1.0, sum, 3e-12);
+					}
+				}
+			}
+		}
+	}
+
+	// normalised rate matrix where only transitions that change one component have a non-zero rate,
+	// drawn from an exponential distribution
+	private double[][] newRateMatrix(Integer [] shape) {
+		int n = 1;
+		for (int size : shape) {
+			n *= size;
+		}
+		double [][] qMatrix = new double[n][n];
+		double total = 0;
+		for (int from = 0; from < n; from++) {
+			int [] fromStates = CompoundDataType.compoundState2componentStates(shape, from);
+			for (int to = 0; to < n; to++) {
+				int [] toStates = CompoundDataType.compoundState2componentStates(shape, to);
+				int changes = 0;
+				for (int c = 0; c < shape.length; c++) {
+					if (fromStates[c] != toStates[c]) {
+						changes++;
+					}
+				}
+				if (changes == 1) {
+					qMatrix[from][to] = -Math.log(Randomizer.nextDouble());
+					qMatrix[from][from] -= qMatrix[from][to];
+				}
+			}
+			total -= qMatrix[from][from] / n;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				qMatrix[i][j] /= total;
+			}
+		}
+		return qMatrix;
+	}
+}
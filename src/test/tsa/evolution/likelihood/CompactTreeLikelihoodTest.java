@@ -0,0 +1,174 @@
+package test.tsa.evolution.likelihood;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.datatype.Binary;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import correlatedtrait.evolution.alignment.CompoundAlignment;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
+import tsa.evolution.likelihood.ThreadedTreeSetLikelihood;
+import tsa.evolution.likelihood.TreeSetLikelihood;
+import tsa.evolution.likelihood.TreeSetLikelihood.LoadedTrees;
+
+/**
+ * Tree set likelihoods evaluate trees with CompactTreeLikelihood, so they are checked tree by tree
+ * against a plain TreeLikelihood to which each tree is assigned in turn.
+ */
+public class CompactTreeLikelihoodTest extends TreeSetLikelihoodTestCase {
+	@Test
+	public void testHKYGamma() throws Exception {
+		File repeated = newRepeatedTreeSet();
+		for (boolean shareSubtrees : new boolean[] {true, false}) {
+			// with and without matrix cache
+			for (int matrixCacheSize : new int[] {65536, 0}) {
+				TreeSetLikelihood likelihood = new TreeSetLikelihood();
+				likelihood.initByName("treeSetFile", repeated, "treeLikelihood", newTreeLikelihood(new RealParameter("2.0")),
+						"burnin", 10, "shareSubtrees", shareSubtrees, "matrixCacheSize", matrixCacheSize, "matrixCacheTolerance", 0.0);
+				assertSameAsTreeLikelihood(likelihood, newTreeLikelihood(new RealParameter("2.0")));
+			}
+		}
+	}
+
+	@Test
+	public void testScaled() throws Exception {
+		// long branches through the clock rate, against a tree likelihood that scales partials at every node
+		for (boolean shareSubtrees : new boolean[] {true, false}) {
+			TreeSetLikelihood likelihood = new TreeSetLikelihood();
+			likelihood.initByName("treeSetFile", newRepeatedTreeSet(), "treeLikelihood", newScaledTreeLikelihood(),
+					"burnin", 10, "shareSubtrees", shareSubtrees, "matrixCacheTolerance", 0.0);
+			assertSameAsTreeLikelihood(likelihood, newScaledTreeLikelihood());
+		}
+	}
+
+	@Test
+	public void testCorrelatedSubstitutionModel() throws Exception {
+		System.setProperty("java.only", "true");
+		File repeated = newRepeatedTreeSet();
+		for (boolean useAmbiguities : new boolean[] {false, true}) {
+			for (boolean shareSubtrees : new boolean[] {true, false}) {
+				TreeSetLikelihood likelihood = new TreeSetLikelihood();
+				likelihood.initByName("treeSetFile", repeated, "treeLikelihood", newCorrelatedTreeLikelihood(useAmbiguities),
+						"burnin", 10, "shareSubtrees", shareSubtrees, "matrixCacheTolerance", 0.0);
+				assertSameAsTreeLikelihood(likelihood, newCorrelatedTreeLikelihood(useAmbiguities));
+			}
+		}
+	}
+
+	@Test
+	public void testThreaded() throws Exception {
+		System.setProperty("java.only", "true");
+		File repeated = newRepeatedTreeSet();
+		for (boolean shareSubtrees : new boolean[] {true, false}) {
+			ThreadedTreeSetLikelihood likelihood = new ThreadedTreeSetLikelihood();
+			likelihood.initByName("treeSetFile", repeated, "treeLikelihood", newTreeLikelihood(new RealParameter("2.0")),
+					"burnin", 10, "shareSubtrees", shareSubtrees, "matrixCacheTolerance", 0.0, "threads", 3);
+			try {
+				assertSameAsTreeLikelihood(likelihood, newTreeLikelihood(new RealParameter("2.0")));
+			} finally {
+				likelihood.shutdown();
+			}
+
+			likelihood = new ThreadedTreeSetLikelihood();
+			likelihood.initByName("treeSetFile", repeated, "treeLikelihood", newCorrelatedTreeLikelihood(true),
+					"burnin", 10, "shareSubtrees", shareSubtrees, "matrixCacheTolerance", 0.0, "threads", 3);
+			try {
+				assertSameAsTreeLikelihood(likelihood, newCorrelatedTreeLikelihood(true));
+			} finally {
+				likelihood.shutdown();
+			}
+		}
+	}
+
+	/** compare every tree's log likelihood with that of reference, after assigning the tree to the tree of reference **/
+	private void assertSameAsTreeLikelihood(TreeSetLikelihood likelihood, TreeLikelihood reference) {
+		likelihood.calculateLogP();
+		double [] treeLogP = likelihood.getTreeLogP();
+		LoadedTrees trees = likelihood.getTrees();
+		assertEquals(trees.getTreeCount(), treeLogP.length);
+		Tree tree = (Tree) reference.treeInput.get();
+		for (int i = 0; i < treeLogP.length; i++) {
+			tree.assignFrom(trees.getTreeSet().getTree(trees.getFirstTree() + i, trees.getLeafNr()));
+			tree.setEverythingDirty(true);
+			double expected = reference.calculateLogP();
+			assertEquals(expected, treeLogP[i], 1e-10 * Math.abs(expected));
+		}
+	}
+
+	/** HKY tree likelihood with a strict clock of rate 20, which scales partials at every node **/
+	private TreeLikelihood newScaledTreeLikelihood() {
+		TreeLikelihood hky = newTreeLikelihood(new RealParameter("2.0"));
+		StrictClockModel clockModel = new StrictClockModel();
+		clockModel.initByName("clock.rate", new RealParameter("20.0"));
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", hky.dataInput.get(), "tree", hky.treeInput.get(), "siteModel", hky.siteModelInput.get(),
+				"branchRateModel", clockModel, "scaling", "always");
+		return likelihood;
+	}
+
+	/**
+	 * Tree likelihood of two binary traits as set up by TSAModelSelector, with two compound sites
+	 * in which some taxa have one or both traits missing
+	 */
+	private TreeLikelihood newCorrelatedTreeLikelihood(boolean useAmbiguities) {
+		Alignment data = new Alignment();
+		data.userDataTypeInput.setValue(new Binary(), data);
+		List<Sequence> sequences = data.sequenceInput.get();
+		sequences.add(new Sequence("Carp", "0110"));
+		sequences.add(new Sequence("Chicken", "1?0?"));
+		sequences.add(new Sequence("Cow", "????"));
+		sequences.add(new Sequence("Frog", "11?1"));
+		sequences.add(new Sequence("Human", "?000"));
+		data.initAndValidate();
+		CompoundAlignment characters = new CompoundAlignment(data, new int[][] {{0, 1}, {2, 3}});
+
+		RealParameter rates = new RealParameter("1.0 2.0 0.5 1.5 3.0 0.7 1.2 0.9");
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.25 0.25 0.25 0.25");
+		CorrelatedSubstitutionModel substModel = new CorrelatedSubstitutionModel();
+		substModel.initByName("shape", new IntegerParameter("2 2"), "alignment", characters, "rates", rates,
+				"frequencies", frequencies);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substModel);
+		StrictClockModel clockModel = new StrictClockModel();
+		clockModel.initByName("clock.rate", new RealParameter("0.5"));
+
+		TreeParser tree = new TreeParser("((Carp:0.2,(Cow:0.13,Human:0.13):0.07):0.02,(Chicken:0.21,Frog:0.21):0.01);");
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", characters, "tree", tree, "siteModel", siteModel, "branchRateModel", clockModel,
+				"useAmbiguities", useAmbiguities);
+		return likelihood;
+	}
+
+	/** TREES with every tree repeated three times, so that subtrees are shared when shareSubtrees is set **/
+	private File newRepeatedTreeSet() throws IOException {
+		File file = File.createTempFile("CompactTreeLikelihoodTest", ".trees");
+		file.deleteOnExit();
+		try (PrintStream out = new PrintStream(file)) {
+			for (String line : Files.readAllLines(TREES.toPath())) {
+				if (line.startsWith("tree ")) {
+					for (int k = 0; k < 3; k++) {
+						out.println(line.replaceFirst("^tree (\\S+)", "tree $1_" + k));
+					}
+				} else {
+					out.println(line);
+				}
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,102 @@
+package test.tsa.evolution.likelihood;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import beast.base.inference.parameter.RealParameter;
+import tsa.evolution.likelihood.ShardWorker;
+import tsa.evolution.likelihood.ShardedTreeSetLikelihood;
+import tsa.evolution.likelihood.TreeSetLikelihood;
+
+public class ShardedTreeSetLikelihoodTest extends TreeSetLikelihoodTestCase {
+	@Test
+	public void testSameAsInProcess() throws Exception {
+		// three workers on this machine, in threads rather than processes
+		String workers = "";
+		for (int i = 0; i < 3; i++) {
+			String token = ShardWorker.newToken();
+			ShardWorker worker = new ShardWorker(0, token);
+			workers += (i > 0 ? "," : "") + worker.getPort() + ":" + token;
+			Thread thread = new Thread(() -> {
+				try {
+					worker.serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		RealParameter kappa = new RealParameter("2.0");
+		kappa.setID("kappa");
+		ShardedTreeSetLikelihood sharded = new ShardedTreeSetLikelihood();
+		sharded.setID("sharded");
+		sharded.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(kappa), "burnin", 10, "workers", workers);
+		try {
+			for (double k : new double[] {2.0, 5.0, 0.5}) {
+				// changing kappa should reach the workers
+				kappa.setValue(0, k);
+				TreeSetLikelihood local = new TreeSetLikelihood();
+				local.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(new RealParameter(k + "")), "burnin", 10);
+				double expected = local.calculateLogP();
+				assertEquals(expected, sharded.calculateLogP(), 1e-10 * Math.abs(expected));
+			}
+		} finally {
+			sharded.shutdown();
+		}
+	}
+
+	@Test
+	public void testStartsWorkerProcesses() throws Exception {
+		// two workers in child processes, found through the class path and the port they print
+		RealParameter kappa = new RealParameter("2.0");
+		kappa.setID("kappa");
+		ShardedTreeSetLikelihood sharded = new ShardedTreeSetLikelihood();
+		sharded.setID("sharded");
+		sharded.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(kappa), "burnin", 10, "shards", 2);
+		try {
+			for (double k : new double[] {2.0, 5.0}) {
+				kappa.setValue(0, k);
+				TreeSetLikelihood local = new TreeSetLikelihood();
+				local.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(new RealParameter(k + "")), "burnin", 10);
+				double expected = local.calculateLogP();
+				assertEquals(expected, sharded.calculateLogP(), 1e-10 * Math.abs(expected));
+
+				// per tree log likelihoods are collected from both workers in tree order
+				double [] expectedTreeLogP = local.getTreeLogP();
+				double [] treeLogP = sharded.getTreeLogP();
+				assertEquals(expectedTreeLogP.length, treeLogP.length);
+				for (int i = 0; i < treeLogP.length; i++) {
+					assertEquals(expectedTreeLogP[i], treeLogP[i], 1e-10 * Math.abs(expectedTreeLogP[i]));
+				}
+			}
+		} finally {
+			sharded.shutdown();
+		}
+	}
+
+	@Test
+	public void testRefusesWrongToken() throws Exception {
+		ShardWorker worker = new ShardWorker(0, ShardWorker.newToken());
+		Thread thread = new Thread(() -> {
+			try {
+				worker.serve();
+			} catch (IOException e) {
+				// test is over
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		ShardedTreeSetLikelihood sharded = new ShardedTreeSetLikelihood();
+		try {
+			sharded.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(new RealParameter("2.0")),
+					"burnin", 10, "workers", worker.getPort() + ":" + ShardWorker.newToken());
+			fail("Worker accepted a coordinator with the wrong token");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("Invalid token"));
+		}
+	}
+}
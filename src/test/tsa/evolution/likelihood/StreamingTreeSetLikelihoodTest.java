@@ -0,0 +1,41 @@
+package test.tsa.evolution.likelihood;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import beast.base.inference.parameter.RealParameter;
+import tsa.evolution.likelihood.StreamingTreeSetLikelihood;
+import tsa.evolution.likelihood.TreeSetLikelihood;
+
+public class StreamingTreeSetLikelihoodTest extends TreeSetLikelihoodTestCase {
+	@Test
+	public void testSameAsInMemory() throws Exception {
+		File gzipped = File.createTempFile("dna", ".trees.gz");
+		gzipped.deleteOnExit();
+		try (InputStream in = new FileInputStream(TREES);
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped))) {
+			in.transferTo(out);
+		}
+
+		for (double k : new double[] {2.0, 5.0, 0.5}) {
+			TreeSetLikelihood local = new TreeSetLikelihood();
+			local.initByName("treeSetFile", TREES, "treeLikelihood", newTreeLikelihood(new RealParameter(k + "")), "burnin", 10);
+			double expected = local.calculateLogP();
+			for (File file : new File[] {TREES, gzipped}) {
+				// chunks that do not divide the number of trees, so the last one is partly filled
+				StreamingTreeSetLikelihood streaming = new StreamingTreeSetLikelihood();
+				streaming.initByName("treeSetFile", file, "treeLikelihood", newTreeLikelihood(new RealParameter(k + "")),
+						"burnin", 10, "chunkSize", 7, "prefetch", 1);
+				assertEquals(expected, streaming.calculateLogP(), 1e-10 * Math.abs(expected));
+				// a second pass over the file gives the same again
+				assertEquals(expected, streaming.calculateLogP(), 1e-10 * Math.abs(expected));
+			}
+		}
+	}
+}
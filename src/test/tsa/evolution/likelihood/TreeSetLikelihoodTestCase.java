@@ -0,0 +1,47 @@
+package test.tsa.evolution.likelihood;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+
+/** tree set and tree likelihood shared by the tree set likelihood tests **/
+public abstract class TreeSetLikelihoodTestCase extends TestCase {
+	final static File TREES = new File("examples/dna.trees");
+
+	/** HKY tree likelihood for five taxa of the trees in TREES **/
+	protected TreeLikelihood newTreeLikelihood(RealParameter kappa) {
+		List<Sequence> sequences = new ArrayList<>();
+		sequences.add(new Sequence("Carp", "ATGGCACACCCAACGCAACTAGGTTTCAAGGACGCG"));
+		sequences.add(new Sequence("Chicken", "ATGGCCAACCACTCCCAACTAGGCTTTCAAGACGCC"));
+		sequences.add(new Sequence("Cow", "ATGGCATATCCCATACAACTAGGATTCCAAGATGCA"));
+		sequences.add(new Sequence("Frog", "ATGGCACACCCATCACAATTAGGTTTTCAAGACGCA"));
+		sequences.add(new Sequence("Human", "ATGGCACATGCAGCGCAAGTAGGTCTACAAGACGCT"));
+		Alignment data = new Alignment(sequences, "nucleotide");
+
+		RealParameter freqs = new RealParameter("0.25 0.25 0.25 0.25");
+		freqs.setID("freqs");
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", frequencies);
+		RealParameter shape = new RealParameter("0.5");
+		shape.setID("shape");
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", hky, "gammaCategoryCount", 4, "shape", shape);
+
+		TreeParser tree = new TreeParser("((Carp:0.2,(Cow:0.13,Human:0.13):0.07):0.02,(Chicken:0.21,Frog:0.21):0.01);");
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+}
@@ -0,0 +1,102 @@
+package test.tsa.evolution.tree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.parser.NexusParser;
+import junit.framework.TestCase;
+import tsa.evolution.tree.ArrayTreeSet;
+import tsa.evolution.tree.NexusTreeReader;
+import tsa.evolution.tree.TreeSetIngest;
+
+public class TreeSetIngestTest extends TestCase {
+	final static File TREES = new File("examples/dna.trees");
+	// Frog is removed from all trees
+	final static String [] NAMES = {"Human", "Carp", "Cow", "Chicken"};
+
+	@Test
+	public void testSameAsSequential() throws Exception {
+		ArrayTreeSet expected = parseWithBeast(TREES, 10);
+		assertEquals(91, expected.getTreeCount());
+
+		// default batches, and small batches so that threads fill the set at many offsets
+		// and reading has to wait for free permits
+		for (int batchSize : new int[] {TreeSetIngest.BATCH_SIZE, 8}) {
+			ArrayTreeSet trees;
+			try (NexusTreeReader reader = new NexusTreeReader(TREES)) {
+				trees = TreeSetIngest.readNexus(reader, 10, expected.getTreeCount(), NAMES, false, 3, batchSize);
+			}
+			assertSameTrees(expected, trees);
+
+			// copying from an in-memory set gives the same trees as well
+			ArrayTreeSet copy = TreeSetIngest.copy(expected, 0, expected.getTreeCount(), NAMES, false, 3, batchSize);
+			assertSameTrees(expected, copy);
+		}
+	}
+
+	@Test
+	public void testFailingBatch() throws Exception {
+		// tree 50 refers to a taxon missing from the translate block, so one of the later batches fails
+		File file = File.createTempFile("TreeSetIngestTest", ".trees");
+		file.deleteOnExit();
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("#NEXUS");
+			out.println("Begin trees;");
+			out.println("\tTranslate");
+			out.println("\t\t1 Carp,");
+			out.println("\t\t2 Chicken,");
+			out.println("\t\t3 Cow,");
+			out.println("\t\t4 Frog,");
+			out.println("\t\t5 Human");
+			out.println(";");
+			for (int i = 0; i < 64; i++) {
+				String frog = i == 50 ? "6" : "4";
+				out.println("tree STATE_" + i + " = (((1:0.2,(3:0.13,5:0.13):0.07):0.02,2:0.22):0.01," + frog + ":0.23);");
+			}
+			out.println("End;");
+		}
+		try (NexusTreeReader reader = new NexusTreeReader(file)) {
+			TreeSetIngest.readNexus(reader, 0, 64, NAMES, false, 2, 8);
+			fail("Expected the unknown taxon to be reported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Taxon 6 not found"));
+		}
+
+		// asking for more trees than there are
+		try (NexusTreeReader reader = new NexusTreeReader(TREES)) {
+			TreeSetIngest.readNexus(reader, 10, 100, NAMES, false, 2, 8);
+			fail("Expected too few trees to be reported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Expected at least 110 trees"));
+		}
+	}
+
+	/** trees after burn-in as parsed by BEAST, reduced to NAMES **/
+	private ArrayTreeSet parseWithBeast(File file, int burnin) throws Exception {
+		NexusParser parser = new NexusParser();
+		parser.parseFile(file);
+		List<Tree> trees = parser.trees;
+		Map<String, Integer> taxonIndex = TreeSetIngest.index(NAMES);
+		ArrayTreeSet expected = new ArrayTreeSet(NAMES, false);
+		for (int i = burnin; i < trees.size(); i++) {
+			expected.add(TreeSetIngest.prune(trees.get(i).getRoot(), taxonIndex));
+		}
+		return expected;
+	}
+
+	private void assertSameTrees(ArrayTreeSet expected, ArrayTreeSet trees) {
+		assertEquals(expected.getTreeCount(), trees.getTreeCount());
+		for (int i = 0; i < trees.getTreeCount(); i++) {
+			for (int node = 0; node < trees.getNodeCount(); node++) {
+				assertEquals(expected.getParent(i, node), trees.getParent(i, node));
+				assertEquals(expected.getHeight(i, node), trees.getHeight(i, node));
+			}
+		}
+	}
+}
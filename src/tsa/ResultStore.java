@@ -0,0 +1,134 @@
+package tsa;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import beast.base.core.Description;
+import beast.base.core.Log;
+
+@Description("Directory with one file per finished model, named after a hash of everything the result depends on, "
+		+ "so that an interrupted run can be resumed, and runs that share models do not compute them twice. "
+		+ "Files are written to a temporary file first and then renamed, so a crash never leaves a partial result.")
+public class ResultStore {
+	final static String SUFFIX = ".properties";
+
+	@Description("Result of a model as stored in a ResultStore")
+	public static class Result {
+		final public double marginalLikelihood;
+		final public double standardDeviation;
+		/** description of the run that produced the result **/
+		final public Properties metaData;
+
+		public Result(double marginalLikelihood, double standardDeviation, Properties metaData) {
+			this.marginalLikelihood = marginalLikelihood;
+			this.standardDeviation = standardDeviation;
+			this.metaData = metaData;
+		}
+	}
+
+	final File dir;
+
+	public ResultStore(File dir) {
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Could not create result store directory " + dir.getPath());
+		}
+		if (!dir.isDirectory()) {
+			throw new IllegalArgumentException("Result store " + dir.getPath() + " is not a directory");
+		}
+		this.dir = dir;
+	}
+
+	/** stored result for key, or null if there is none or it cannot be read **/
+	public synchronized Result get(String key) {
+		File file = new File(dir, key + SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+			return new Result(Double.parseDouble(properties.getProperty("marginalLikelihood")),
+					Double.parseDouble(properties.getProperty("standardDeviation")), properties);
+		} catch (IOException | RuntimeException e) {
+			Log.warning("Ignoring unreadable result " + file.getPath() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** store result for key, replacing any earlier result **/
+	public synchronized void put(String key, double marginalLikelihood, double standardDeviation, Properties metaData) throws IOException {
+		Properties properties = new Properties();
+		properties.putAll(metaData);
+		properties.setProperty("marginalLikelihood", Double.toString(marginalLikelihood));
+		properties.setProperty("standardDeviation", Double.toString(standardDeviation));
+		File tmp = File.createTempFile(key, ".tmp", dir);
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			properties.store(out, "TSAModelSelector result");
+		}
+		try {
+			Files.move(tmp.toPath(), new File(dir, key + SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	/** SHA-256 digest, for building keys **/
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** add a string to digest, in a way that keeps boundaries between consecutive strings **/
+	public static void update(MessageDigest digest, String str) {
+		byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+	}
+
+	/** add contents of file to digest **/
+	public static void update(MessageDigest digest, File file) throws IOException {
+		byte [] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		}
+	}
+
+	/** key for the contents of file, as toKey gives after adding only the file **/
+	public static String fileKey(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		update(digest, file);
+		return toKey(digest);
+	}
+
+	/** key for the digested content: hexadecimal digest **/
+	public static String toKey(MessageDigest digest) {
+		StringBuilder b = new StringBuilder();
+		for (byte x : digest.digest()) {
+			b.append(Character.forDigit((x >> 4) & 0xf, 16));
+			b.append(Character.forDigit(x & 0xf, 16));
+		}
+		return b.toString();
+	}
+}
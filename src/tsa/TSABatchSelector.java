@@ -0,0 +1,225 @@
+package tsa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import beastfx.app.tools.Application;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Runnable;
+import tsa.evolution.likelihood.LikelihoodExecutor;
+import tsa.evolution.likelihood.TreeSetLikelihood.LoadedTrees;
+
+@Description("Screen many pairs of D-PLACE features for correlation in one process. The CSV file and tree set are "
+		+ "read once and shared by all pairs, and the 16 models of every pair go through one job queue, so all "
+		+ "threads stay busy until the last model is done. Results are written as one table with a row per pair.")
+public class TSABatchSelector extends Runnable {
+	public Input<File> pairsInput = new Input<>("pairs", "file with one pair of features per line, with four tab "
+			+ "separated columns: first feature, values of first feature interpreted as 1 (as for v1 in TSAModelSelector), "
+			+ "second feature and values of second feature interpreted as 1. "
+			+ "Features are CSV column names, where the \"Code: \" prefix can be omitted. "
+			+ "Empty lines and lines starting with # are ignored", Validate.REQUIRED);
+	public Input<File> dataFileInput = new Input<>("file", "CSV file exported from DPLACE data, containing all features of all pairs",
+			new File("dplace/dplace-societies-2017-02-21.csv"));
+	public Input<String> codeInput = new Input<>("code", "column name containing the code for taxa in the tree, e.g  or 'Society id' or 'ISO code'", "Society id");
+	public Input<TreeFile> treeSetFileInput = new Input<>("treeFile", "file containing trees used for inference");
+	public Input<Integer> particleCountInput = new Input<>("particleCount", "number of particles (default 1)", 1);
+	public Input<Integer> subChainLengthInput = new Input<>("subChainLength",
+			"number of MCMC samples for each epoch (default 100)", 100);
+	public Input<Double> epsilonInput = new Input<>("epsilon",
+			"stopping criterion: smallest change in ML estimate to accept", 1e-8);
+	public Input<Boolean> useRelaxedClockInput = new Input<>("relaxed", "if true, a relaxed clock is used, otherwise a strict clock is used",
+			false);
+	public Input<Integer> threadCountInput = new Input<>("threads", "Number of threads to use (default 1). "
+			+ "Models of all pairs are evaluated at the same time as far as threads allow", 1);
+	public Input<File> storeInput = new Input<>("store", "Directory where the result of each model is saved as soon as the model is done, "
+			+ "see TSAModelSelector. Pairs with all models stored are not run again.");
+	public Input<OutFile> outputInput = new Input<>("output", "tab separated file with results, one row per pair. "
+			+ "Results are printed to stdout if not specified.");
+
+	@Description("Pair of features and the thresholds that turn them into binary characters")
+	static class Pair {
+		final String feature1, v1, feature2, v2;
+		int column1, column2;
+		TSAModelSelector selector;
+		/** set if any of the models failed **/
+		Throwable error;
+
+		Pair(String feature1, String v1, String feature2, String v2) {
+			this.feature1 = feature1;
+			this.v1 = v1;
+			this.feature2 = feature2;
+			this.v2 = v2;
+		}
+
+		@Override
+		public String toString() {
+			return feature1 + "[" + v1 + "] x " + feature2 + "[" + v2 + "]";
+		}
+	}
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		long start = System.currentTimeMillis();
+        Log.warning("Do not use BEAGLE with CorrelatedSubstitutionModel: setting java.only=true");
+        System.setProperty("java.only", "true");
+
+		List<Pair> pairs = readPairs(pairsInput.get());
+		if (pairs.size() == 0) {
+			throw new IllegalArgumentException("No pairs of features found in " + pairsInput.get().getPath());
+		}
+
+		// everything that does not depend on the pair is read once
+		TSADataContext.Table table = TSADataContext.Table.read(dataFileInput.get());
+		int codeColumn = table.getColumn(codeInput.get());
+		for (Pair pair : pairs) {
+			// fail before running anything when a feature is missing
+			pair.column1 = table.getColumn(pair.feature1);
+			pair.column2 = table.getColumn(pair.feature2);
+		}
+		Tree tree = new TreeParser(null, TSAModelSelector.newick, 0, false);
+		LoadedTrees trees = treeSetFileInput.get() == null ? null
+				: LoadedTrees.load(treeSetFileInput.get(), 0, false, tree.getTaxaNames());
+
+		for (Pair pair : pairs) {
+			Log.info("Data for " + pair);
+			pair.selector = newSelector(pair);
+			pair.selector.prepare(new TSADataContext(tree, table, codeColumn, pair.column1, pair.column2,
+					pair.v1, pair.v2, trees));
+		}
+
+		LikelihoodExecutor.setBudget(threadCountInput.get());
+		int jobCount = 16 * pairs.size();
+		int modelThreadCount = LikelihoodExecutor.split(jobCount);
+		Log.warning("Evaluating " + jobCount + " models of " + pairs.size() + " pair(s), " + modelThreadCount
+				+ " at a time with " + LikelihoodExecutor.getThreadsPerLikelihood() + " thread(s) for the trees of each model");
+		try {
+			ExecutorService exec = LikelihoodExecutor.newModelExecutor("TSABatchSelector", modelThreadCount);
+			List<Future<?>> jobs = new ArrayList<>();
+			for (Pair pair : pairs) {
+				for (int i = 0; i < 16; i++) {
+					final int model = i;
+					jobs.add(exec.submit(() -> {
+						pair.selector.runModel(model);
+						return null;
+					}));
+				}
+			}
+			for (int k = 0; k < jobs.size(); k++) {
+				Pair pair = pairs.get(k / 16);
+				try {
+					jobs.get(k).get();
+				} catch (ExecutionException e) {
+					Log.warning("Model " + (k % 16) + " of " + pair + " failed: " + e.getCause().getMessage());
+					e.getCause().printStackTrace();
+					pair.error = e.getCause();
+				}
+			}
+		} finally {
+			LikelihoodExecutor.shutdown();
+		}
+
+		PrintStream out = System.out;
+		if (outputInput.get() != null) {
+			out = new PrintStream(outputInput.get());
+		}
+		printTable(pairs, out);
+		if (outputInput.get() != null) {
+			out.close();
+			Log.info("\nOutput written to " + outputInput.get().toPath() +"\n");
+		}
+
+		long end = System.currentTimeMillis();
+		Log.warning("Total time spent: " + (end - start) / 1000 + " seconds");
+		Log.warning("All done!");
+	}
+
+	static List<Pair> readPairs(File file) throws IOException {
+		List<Pair> pairs = new ArrayList<>();
+		try (BufferedReader fin = new BufferedReader(new FileReader(file))) {
+			String str;
+			int lineNr = 0;
+			while ((str = fin.readLine()) != null) {
+				lineNr++;
+				if (str.trim().length() == 0 || str.trim().startsWith("#")) {
+					continue;
+				}
+				String [] strs = str.split("\t");
+				if (strs.length != 4) {
+					throw new IllegalArgumentException("Expected 4 tab separated columns on line " + lineNr + " of "
+							+ file.getPath() + " but found " + strs.length);
+				}
+				pairs.add(new Pair(strs[0].trim(), strs[1].trim(), strs[2].trim(), strs[3].trim()));
+			}
+		}
+		return pairs;
+	}
+
+	private TSAModelSelector newSelector(Pair pair) {
+		TSAModelSelector selector = new TSAModelSelector();
+		selector.setID(pair.toString());
+		selector.initByName("v1", pair.v1, "v2", pair.v2,
+				"file", dataFileInput.get(),
+				"code", codeInput.get(),
+				"particleCount", particleCountInput.get(),
+				"subChainLength", subChainLengthInput.get(),
+				"epsilon", epsilonInput.get(),
+				"relaxed", useRelaxedClockInput.get());
+		if (treeSetFileInput.get() != null) {
+			selector.treeSetFileInput.setValue(treeSetFileInput.get(), selector);
+		}
+		if (storeInput.get() != null) {
+			selector.storeInput.setValue(storeInput.get(), selector);
+		}
+		return selector;
+	}
+
+	/** one row per pair: features, counts of 00, 01, 10 and 11, marginal likelihoods and P(different) per rate **/
+	private void printTable(List<Pair> pairs, PrintStream out) {
+		out.print("feature1\tv1\tfeature2\tv2\tn00\tn01\tn10\tn11");
+		for (int i = 0; i < 16; i++) {
+			out.print("\tML" + i + "\tSD" + i);
+		}
+		out.println("\tP(?0->?1)\tP(0?->1?)\tP(?1->?0)\tP(1?->0?)\tstatus");
+		for (Pair pair : pairs) {
+			TSAModelSelector selector = pair.selector;
+			out.print(pair.feature1 + "\t" + pair.v1 + "\t" + pair.feature2 + "\t" + pair.v2);
+			for (int count : selector.getSiteCount()) {
+				out.print("\t" + count);
+			}
+			double [] ml = selector.getMarginalLikelihoods();
+			double [] df = selector.getStandardDeviations();
+			for (int i = 0; i < 16; i++) {
+				out.print("\t" + (pair.error == null ? ml[i] : Double.NaN) + "\t" + (pair.error == null ? df[i] : Double.NaN));
+			}
+			for (int rate = 1; rate <= 4; rate++) {
+				out.print("\t" + (pair.error == null ? selector.probabilityDifferent(rate) : Double.NaN));
+			}
+			out.println("\t" + (pair.error == null ? "ok" : "failed: " + pair.error.getMessage()));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new TSABatchSelector(), "DPLACE Batch Model Selector", args);
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,276 @@
+package tsa;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.Description;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.datatype.Binary;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import correlatedtrait.evolution.alignment.CompoundAlignment;
+import tsa.evolution.likelihood.TreeSetLikelihood.LoadedTrees;
+
+@Description("Data shared by all models of a TSAModelSelector run: the tree, the D-PLACE features as alignment "
+		+ "and compound alignment, and the tree set. Everything is read once, and not changed afterwards, so "
+		+ "models built in different threads can share it.")
+public class TSADataContext {
+	/** tree parsed from newick, which models get copies of **/
+	final Tree tree;
+	final Alignment data;
+	final CompoundAlignment characters;
+	/** number of taxa with values 00, 01, 10 and 11 **/
+	final int [] siteCount;
+	/** trees from the tree set file, null if there is none **/
+	final LoadedTrees trees;
+
+	/**
+	 * @param dataFile CSV file exported from D-PLACE
+	 * @param code column name containing the code for taxa in the tree
+	 * @param v1 values of the first feature interpreted as 1, see TSAModelSelector
+	 * @param v2 as v1 for the second feature
+	 * @param treeSetFile trees to average over, or null
+	 */
+	public TSADataContext(String newick, File dataFile, String code, String v1, String v2, File treeSetFile) throws IOException {
+		tree = new TreeParser(null, newick, 0, false);
+		Table table = Table.read(dataFile);
+		int [] columns = table.getFeatureColumns();
+		siteCount = new int[4];
+		data = processDataFile(table, table.getColumn(code), columns[0], columns[1], v1, v2, tree.getTaxaNames(), siteCount);
+		characters = new CompoundAlignment(data);
+		trees = treeSetFile == null ? null : LoadedTrees.load(treeSetFile, 0, false, tree.getTaxaNames());
+	}
+
+	/**
+	 * Context for a pair of features from a table that was read before, with trees that were loaded before,
+	 * so that contexts for many pairs of features share the expensive parts.
+	 *
+	 * @param tree parsed tree, which is copied so contexts can be used in different threads
+	 * @param codeColumn column of table containing the code for taxa in the tree
+	 * @param column1 column of the first feature
+	 * @param column2 column of the second feature
+	 * @param trees trees loaded for the taxa of tree, or null
+	 */
+	public TSADataContext(Tree tree, Table table, int codeColumn, int column1, int column2, String v1, String v2,
+			LoadedTrees trees) throws IOException {
+		synchronized (tree) {
+			this.tree = new Tree();
+			this.tree.initByName("initial", tree);
+		}
+		siteCount = new int[4];
+		data = processDataFile(table, codeColumn, column1, column2, v1, v2, this.tree.getTaxaNames(), siteCount);
+		characters = new CompoundAlignment(data);
+		this.trees = trees;
+	}
+
+	@Description("Rows of a CSV file exported from D-PLACE, with quoted text removed")
+	public static class Table {
+		final String [] header;
+		final List<String []> rows;
+
+		private Table(String [] header, List<String []> rows) {
+			this.header = header;
+			this.rows = rows;
+		}
+
+		public static Table read(File dataFile) throws IOException {
+			try (BufferedReader fin = new BufferedReader(new FileReader(dataFile))) {
+				// skip first line
+				fin.readLine();
+				// second line contains column names
+				String [] header = fin.readLine().split(",");
+				List<String []> rows = new ArrayList<>();
+				String str;
+				while ((str = fin.readLine()) != null) {
+					// remove qouted text
+					str = str.replaceAll("\"[^\"]+\"", "");
+					rows.add(str.split(","));
+				}
+				return new Table(header, rows);
+			}
+		}
+
+		/** index of the column with name, which may omit the "Code: " prefix of feature columns **/
+		public int getColumn(String name) {
+			int index = -1;
+			for (int i = 0; i < header.length; i++) {
+				if (header[i].equals(name) || header[i].equals("Code: " + name)) {
+					if (index < 0) {
+						index = i;
+					} else {
+						throw new IllegalArgumentException("more than one " + name + " column found");
+					}
+				}
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException("Could not find " + name + " column");
+			}
+			return index;
+		}
+
+		/** the two feature (Code:) columns of a file that contains exactly two of them **/
+		public int [] getFeatureColumns() {
+			int v1Input = -1;
+			int v2Input = -1;
+			for (int i = 0; i < header.length; i++) {
+				if (header[i].startsWith("Code: ")) {
+					if (v1Input < 0) {
+						v1Input = i;
+					} else if (v2Input < 0) {
+						v2Input = i;
+					} else {
+						throw new IllegalArgumentException("Found more than 2 Code: columns, but expected 2");
+					}
+				}
+			}
+			if (v1Input < 0) {
+				throw new IllegalArgumentException("Could not find any Code: column");
+			}
+			if (v2Input < 0) {
+				throw new IllegalArgumentException("Could only find one Code: column, but expected 2");
+			}
+			return new int[] {v1Input, v2Input};
+		}
+	}
+
+	/**
+	 * A new tree equal to the parsed tree, for a model to use as it sees fit. It is initialised from
+	 * the parsed tree rather than the newick string, so copies made later are cheap as well.
+	 * Not thread safe, since it registers the new tree with the parsed one.
+	 **/
+	public Tree newTree() {
+		Tree copy = new Tree();
+		copy.initByName("initial", tree);
+		return copy;
+	}
+
+	public Alignment getData() {
+		return data;
+	}
+
+	public CompoundAlignment getCharacters() {
+		return characters;
+	}
+
+	public int [] getSiteCount() {
+		return siteCount.clone();
+	}
+
+	public LoadedTrees getTrees() {
+		return trees;
+	}
+
+	/**
+	 * convert two features of a file exported from DPLACE into an Alignment
+	 *
+	 * @param taxaNames
+	 * @param siteCount filled with number of taxa with values 00, 01, 10 and 11
+	 **/
+	static Alignment processDataFile(Table table, int socIndex, int v1Input, int v2Input, String v1Values, String v2Values,
+			String[] taxaNames, int [] siteCount) throws IOException {
+		// get data out of columns
+		Map<String, String> map = new LinkedHashMap<>();
+		for (String iso : taxaNames) {
+			map.put(iso, "??");
+		}
+
+		boolean [] values1 = toBoolean(v1Values);
+		boolean [] values2 = toBoolean(v2Values);
+
+		for (String [] strs : table.rows) {
+			if (strs.length <= Math.max(socIndex, Math.max(v1Input, v2Input))) {
+				String society = strs.length > socIndex ? strs[socIndex] : "with unknown society";
+				Log.warning("Skipping row " + society + ", which is too short to hold both features. Its value stays \"??\"");
+				continue;
+			}
+			String iso = strs[socIndex];
+			if (iso.length() > 0) {
+				String v1org = strs[v1Input];
+				String v1 = normalise(v1org, values1);
+				String v2org = strs[v2Input];
+				String v2 = normalise(v2org, values2);
+				String valueOrg = v1org + v2org;
+				String value = v1 + v2;
+				// make sure that ambiguities are ignored
+				if (v1.charAt(0)=='?' || v2.charAt(0)=='?') {
+					value = "??";
+				}
+ 				if (map.containsKey(iso)) {
+					String value2 = map.get(iso);
+					if (!value.equals(value2) && !value2.equals("??")) {
+						Log.warning("Ambiguous value for " + iso + " (" + value + " & " + value2
+								+ "). Setting value to \"??\"");
+						map.put(iso, "??");
+					} else {
+						map.put(iso, value + " " + valueOrg);
+					}
+				}
+			}
+
+		}
+
+		// convert to Alignment
+		Alignment data = new Alignment();
+		data.userDataTypeInput.setValue(new Binary(), data);
+		List<Sequence> seqs = data.sequenceInput.get();
+		for (String iso : map.keySet()) {
+			String [] v = map.get(iso).split(" ");
+			Sequence seq = new Sequence(iso, v[0]);
+			if (v.length > 1) {
+				seq.setID("seq" + seqs.size() + "_" + v[1]);
+			} else {
+				seq.setID("seq" + seqs.size() + "_??");
+			}
+			seqs.add(seq);
+			switch(map.get(iso)) {
+			case "00" : siteCount[0]++;break;
+			case "01" : siteCount[1]++;break;
+			case "10" : siteCount[2]++;break;
+			case "11" : siteCount[3]++;break;
+			}
+		}
+		Log.info("value: count");
+		Log.info("00   : " + siteCount[0]);
+		Log.info("01   : " + siteCount[1]);
+		Log.info("10   : " + siteCount[2]);
+		Log.info("11   : " + siteCount[3]);
+
+		data.initAndValidate();
+
+		return data;
+	}
+
+	static boolean[] toBoolean(String str) {
+		boolean [] b = new boolean[100];
+		str = str.replaceAll("\\s", "");
+		String [] strs = str.split(",");
+		for (String s : strs) {
+			b[Integer.parseInt(s)] = true;
+		}
+		return b;
+	}
+
+	static String normalise(String v, boolean [] threshold) {
+		if (v.equals("NA")) {
+			return "?";
+		}
+		try {
+			int value = Integer.parseInt(v);
+			if (threshold[value]) {
+				return "1";
+			} else {
+				return "0";
+			}
+		} catch (NumberFormatException e) {
+			return "?";
+		}
+	}
+}
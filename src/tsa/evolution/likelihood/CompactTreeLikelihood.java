@@ -0,0 +1,358 @@
+package tsa.evolution.likelihood;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
+import tsa.evolution.tree.CompactTreeSet;
+import tsa.evolution.tree.SubtreeTable;
+
+@Description("Calculates the tree likelihood of trees in a CompactTreeSet by running the pruning algorithm "
+		+ "straight over the arrays of the tree set. No Tree or Node objects are involved, and all "
+		+ "working memory is allocated up front, so evaluating a tree does not allocate.")
+public class CompactTreeLikelihood {
+	CompactTreeSet treeSet;
+	Alignment data;
+	SiteModel siteModel;
+	SubstitutionModel substitutionModel;
+	BranchRateModel.Base branchRateModel;
+
+	int taxonCount, nodeCount, stateCount, patternCount, categoryCount;
+	/** partials of leaves, indexed by taxon then pattern * stateCount + state **/
+	double [][] tipPartials;
+	/** partials of internal nodes, indexed by internal node then (category * patternCount + pattern) * stateCount + state **/
+	double [][] partials;
+	/** transition probability matrices of the branches above all nodes, indexed by (node * categoryCount + category) * stateCount * stateCount **/
+	double [] matrices;
+	double [] matrix;
+	/** lengths of the branches above all nodes **/
+	double [] branchLengths;
+	/** substitution model, if it can calculate matrices in batches **/
+	CorrelatedSubstitutionModel batchModel;
+	/** distances and positions in matrices of branches not found in the matrix cache **/
+	double [] missDistances;
+	int [] missOffsets;
+	double [] missMatrices;
+	/** log of scale factors accumulated over all internal nodes, per pattern **/
+	double [] logScale;
+	double [] patternWeight;
+	double [] categoryRates;
+	double clockRate;
+	/** shared cache of transition probability matrices, null if not used **/
+	TransitionMatrixCache matrixCache;
+
+	/**
+	 * Returns CompactTreeLikelihood that gives the same results as likelihood, or null if likelihood
+	 * uses features not supported here, such as relaxed clocks, tip likelihoods, root frequencies
+	 * or ascertainment correction.
+	 */
+	static public CompactTreeLikelihood newInstance(GenericTreeLikelihood likelihood, CompactTreeSet treeSet) {
+		if (!(likelihood instanceof TreeLikelihood)) {
+			return null;
+		}
+		TreeLikelihood treeLikelihood = (TreeLikelihood) likelihood;
+		if (!(treeLikelihood.siteModelInput.get() instanceof SiteModel)) {
+			return null;
+		}
+		BranchRateModel.Base branchRateModel = treeLikelihood.branchRateModelInput.get();
+		if (branchRateModel != null && !(branchRateModel instanceof StrictClockModel)) {
+			return null;
+		}
+		if (treeLikelihood.rootFrequenciesInput.get() != null ||
+				treeLikelihood.m_useTipLikelihoods.get() ||
+				treeLikelihood.dataInput.get().isAscertained) {
+			return null;
+		}
+		return new CompactTreeLikelihood(treeLikelihood, treeSet);
+	}
+
+	protected CompactTreeLikelihood(TreeLikelihood likelihood, CompactTreeSet treeSet) {
+		this.treeSet = treeSet;
+		data = likelihood.dataInput.get();
+		siteModel = (SiteModel) likelihood.siteModelInput.get();
+		substitutionModel = siteModel.substModelInput.get();
+		branchRateModel = likelihood.branchRateModelInput.get();
+
+		taxonCount = treeSet.getLeafNodeCount();
+		nodeCount = treeSet.getNodeCount();
+		stateCount = substitutionModel.getStateCount();
+		patternCount = data.getPatternCount();
+		categoryCount = siteModel.getCategoryCount();
+
+		patternWeight = new double[patternCount];
+		for (int i = 0; i < patternCount; i++) {
+			patternWeight[i] = data.getPatternWeight(i);
+		}
+
+		boolean useAmbiguities = likelihood.m_useAmbiguities.get();
+		DataType dataType = data.getDataType();
+		String [] taxa = treeSet.getTaxaNames();
+		tipPartials = new double[taxonCount][patternCount * stateCount];
+		for (int i = 0; i < taxonCount; i++) {
+			int taxonIndex = data.getTaxonIndex(taxa[i]);
+			if (taxonIndex < 0) {
+				throw new IllegalArgumentException("Could not find sequence " + taxa[i] + " in the alignment");
+			}
+			double [] tip = tipPartials[i];
+			for (int j = 0; j < patternCount; j++) {
+				int code = data.getPattern(taxonIndex, j);
+				if (useAmbiguities) {
+					boolean [] stateSet = dataType.getStateSet(code);
+					for (int k = 0; k < stateCount; k++) {
+						tip[j * stateCount + k] = stateSet[k] ? 1.0 : 0.0;
+					}
+				} else if (code >= 0 && code < stateCount) {
+					tip[j * stateCount + code] = 1.0;
+				} else {
+					// missing or ambiguous data
+					Arrays.fill(tip, j * stateCount, (j + 1) * stateCount, 1.0);
+				}
+			}
+		}
+
+		partials = new double[nodeCount - taxonCount][categoryCount * patternCount * stateCount];
+		matrices = new double[nodeCount * categoryCount * stateCount * stateCount];
+		matrix = new double[stateCount * stateCount];
+		branchLengths = new double[nodeCount];
+		if (substitutionModel instanceof CorrelatedSubstitutionModel) {
+			batchModel = (CorrelatedSubstitutionModel) substitutionModel;
+		}
+		logScale = new double[patternCount];
+	}
+
+	/**
+	 * Proportion of invariant sites is dealt with by TreeLikelihood separately from the
+	 * rate categories, which is not supported here.
+	 * @return whether calculateLogP() can be used with the current state of the site model
+	 */
+	public boolean isApplicable() {
+		return siteModel.getProportionInvariant() == 0;
+	}
+
+	/** log likelihood of tree with index treeNr in the tree set **/
+	public double calculateLogP(int treeNr) {
+		prepare();
+		Arrays.fill(logScale, 0.0);
+
+		// matrices for all branches of the tree in one go; the root is the last node and has no branch
+		for (int node = taxonCount; node < nodeCount; node++) {
+			double height = treeSet.getHeight(treeNr, node);
+			for (int c = 0; c < 2; c++) {
+				int child = treeSet.getChild(treeNr, node, c);
+				branchLengths[child] = height - treeSet.getHeight(treeNr, child);
+			}
+		}
+		setMatrices(branchLengths, nodeCount - 1);
+
+		int nodeMatrices = categoryCount * stateCount * stateCount;
+		// internal nodes are numbered in post-order, so visiting them in order of their number
+		// guarantees children are done before their parents
+		for (int node = taxonCount; node < nodeCount; node++) {
+			int left = treeSet.getChild(treeNr, node, 0);
+			int right = treeSet.getChild(treeNr, node, 1);
+			combine(left < taxonCount ? tipPartials[left] : partials[left - taxonCount], left < taxonCount, left * nodeMatrices,
+					right < taxonCount ? tipPartials[right] : partials[right - taxonCount], right < taxonCount, right * nodeMatrices,
+					partials[node - taxonCount], logScale);
+		}
+		return rootLogP(partials[nodeCount - 1 - taxonCount], logScale);
+	}
+
+	/**
+	 * Calculate partials of a subtree in table, storing them in shared. The partials of the children
+	 * of the subtree must have been calculated before, and prepare() must have been called since
+	 * the last change of the model.
+	 */
+	public void calculateSubtree(SubtreeTable table, SubtreePartials shared, int subtree) {
+		int left = table.getChild(subtree, 0);
+		int right = table.getChild(subtree, 1);
+		branchLengths[0] = table.getBranchLength(subtree, 0);
+		branchLengths[1] = table.getBranchLength(subtree, 1);
+		setMatrices(branchLengths, 2);
+		double [] scale = shared.logScale[subtree - taxonCount];
+		for (int j = 0; j < patternCount; j++) {
+			scale[j] = (left < taxonCount ? 0 : shared.logScale[left - taxonCount][j]) +
+					(right < taxonCount ? 0 : shared.logScale[right - taxonCount][j]);
+		}
+		combine(left < taxonCount ? tipPartials[left] : shared.partials[left - taxonCount], left < taxonCount, 0,
+				right < taxonCount ? tipPartials[right] : shared.partials[right - taxonCount], right < taxonCount, categoryCount * stateCount * stateCount,
+				shared.partials[subtree - taxonCount], scale);
+	}
+
+	/** log likelihood of tree with given root in table, once all subtrees are calculated **/
+	public double calculateRootLogP(SubtreePartials shared, int root) {
+		return rootLogP(shared.partials[root - taxonCount], shared.logScale[root - taxonCount]);
+	}
+
+	/** pick up current rates from site and clock model, must be called before calculating partials **/
+	public void prepare() {
+		categoryRates = siteModel.getCategoryRates(null);
+		clockRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(null);
+	}
+
+	/**
+	 * set transition probability matrices for all categories of the first count branches in lengths,
+	 * storing those of branch i from (i * categoryCount) * stateCount * stateCount in matrices
+	 */
+	private void setMatrices(double [] lengths, int count) {
+		int matrixSize = stateCount * stateCount;
+		if (batchModel == null) {
+			for (int b = 0; b < count; b++) {
+				for (int i = 0; i < categoryCount; i++) {
+					int offset = (b * categoryCount + i) * matrixSize;
+					if (matrixCache != null) {
+						matrixCache.getTransitionProbabilities(substitutionModel, lengths[b] * categoryRates[i] * clockRate, matrices, offset);
+					} else {
+						substitutionModel.getTransitionProbabilities(null, lengths[b], 0.0, categoryRates[i] * clockRate, matrix);
+						System.arraycopy(matrix, 0, matrices, offset, matrixSize);
+					}
+				}
+			}
+			return;
+		}
+		if (matrixCache == null) {
+			batchModel.getTransitionProbabilities(lengths, count, clockRate, categoryRates, matrices);
+			return;
+		}
+
+		// look up what we can, and calculate the rest in one batch
+		if (missDistances == null) {
+			missDistances = new double[nodeCount * categoryCount];
+			missOffsets = new int[nodeCount * categoryCount];
+			missMatrices = new double[nodeCount * categoryCount * matrixSize];
+		}
+		int missCount = 0;
+		for (int b = 0; b < count; b++) {
+			for (int i = 0; i < categoryCount; i++) {
+				int offset = (b * categoryCount + i) * matrixSize;
+				double distance = matrixCache.round(lengths[b] * categoryRates[i] * clockRate);
+				if (!matrixCache.get(distance, matrices, offset)) {
+					missDistances[missCount] = distance;
+					missOffsets[missCount++] = offset;
+				}
+			}
+		}
+		if (missCount > 0) {
+			batchModel.getTransitionProbabilities(missDistances, missCount, missMatrices);
+			for (int k = 0; k < missCount; k++) {
+				System.arraycopy(missMatrices, k * matrixSize, matrices, missOffsets[k], matrixSize);
+				matrixCache.put(missDistances[k], missMatrices, k * matrixSize);
+			}
+		}
+	}
+
+	private double rootLogP(double [] rootPartials, double [] logScale) {
+		double [] proportions = siteModel.getCategoryProportions(null);
+		double [] frequencies = substitutionModel.getFrequencies();
+		double logP = 0;
+		for (int j = 0; j < patternCount; j++) {
+			double sum = 0;
+			for (int i = 0; i < categoryCount; i++) {
+				int offset = (i * patternCount + j) * stateCount;
+				double sumCategory = 0;
+				for (int k = 0; k < stateCount; k++) {
+					sumCategory += frequencies[k] * rootPartials[offset + k];
+				}
+				sum += proportions[i] * sumCategory;
+			}
+			logP += (Math.log(sum) + logScale[j]) * patternWeight[j];
+		}
+		return logP;
+	}
+
+	/**
+	 * calculate partials3 from those of two children, scaling them by their maximum per pattern and
+	 * adding the log of the scale factors to logScale. Tip partials are not split by category.
+	 * The matrices of the branches to the children start at matrices1 and matrices2 in matrices.
+	 */
+	private void combine(double [] partials1, boolean isTip1, int matrices1, double [] partials2, boolean isTip2, int matrices2,
+			double [] partials3, double [] logScale) {
+		int matrixSize = stateCount * stateCount;
+
+		for (int i = 0; i < categoryCount; i++) {
+			int m1 = matrices1 + i * matrixSize;
+			int m2 = matrices2 + i * matrixSize;
+			for (int j = 0; j < patternCount; j++) {
+				int v = (i * patternCount + j) * stateCount;
+				int v1 = isTip1 ? j * stateCount : v;
+				int v2 = isTip2 ? j * stateCount : v;
+				for (int k = 0; k < stateCount; k++) {
+					double sum1 = 0, sum2 = 0;
+					int w = k * stateCount;
+					for (int l = 0; l < stateCount; l++) {
+						sum1 += matrices[m1 + w + l] * partials1[v1 + l];
+						sum2 += matrices[m2 + w + l] * partials2[v2 + l];
+					}
+					partials3[v + k] = sum1 * sum2;
+				}
+			}
+		}
+
+		// scale partials, using the same factor for all categories of a pattern
+		for (int j = 0; j < patternCount; j++) {
+			double max = 0;
+			for (int i = 0; i < categoryCount; i++) {
+				int v = (i * patternCount + j) * stateCount;
+				for (int k = 0; k < stateCount; k++) {
+					max = Math.max(max, partials3[v + k]);
+				}
+			}
+			if (max > 0 && max != 1.0) {
+				for (int i = 0; i < categoryCount; i++) {
+					int v = (i * patternCount + j) * stateCount;
+					for (int k = 0; k < stateCount; k++) {
+						partials3[v + k] /= max;
+					}
+				}
+				logScale[j] += Math.log(max);
+			}
+		}
+	}
+
+	/** evaluate trees of another tree set with the same taxon table, such as the next chunk of a streamed tree set **/
+	public void setTreeSet(CompactTreeSet treeSet) {
+		if (treeSet.getLeafNodeCount() != taxonCount || treeSet.getNodeCount() != nodeCount) {
+			throw new IllegalArgumentException("Tree set should have " + taxonCount + " taxa, not " + treeSet.getLeafNodeCount());
+		}
+		this.treeSet = treeSet;
+	}
+
+	public void setMatrixCache(TransitionMatrixCache matrixCache) {
+		this.matrixCache = matrixCache;
+	}
+
+	public SubstitutionModel getSubstitutionModel() {
+		return substitutionModel;
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	/** number of doubles needed to store the partials of one internal node **/
+	public long getPartialsSize() {
+		return (long) categoryCount * patternCount * stateCount;
+	}
+
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	@Description("Partials of all distinct subtrees in a SubtreeTable, shared by all trees containing them")
+	static public class SubtreePartials {
+		final double [][] partials;
+		final double [][] logScale;
+
+		public SubtreePartials(SubtreeTable table, CompactTreeLikelihood likelihood) {
+			partials = new double[table.getSubtreeCount()][(int) likelihood.getPartialsSize()];
+			logScale = new double[table.getSubtreeCount()][likelihood.getPatternCount()];
+		}
+	}
+}
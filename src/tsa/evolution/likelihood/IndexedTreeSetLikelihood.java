@@ -4,7 +4,6 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.IntegerParameter;
-import beast.base.evolution.tree.Tree;
 
 @Description("Tree set likelihood that picks only one of the tree at a time")
 public class IndexedTreeSetLikelihood extends TreeSetLikelihood {
@@ -21,22 +20,20 @@ public class IndexedTreeSetLikelihood extends TreeSetLikelihood {
 		index = indexInput.get();
 		prevTree = -1;
 		index.setLower(0);
-		index.setUpper(trees.size());		
+		index.setUpper(getTreeCount());		
 	}
 	
 	@Override
 	public double calculateLogP() {
         logP = 0;
-    	Tree tree0 = (Tree) treelikelihood.treeInput.get();
-    	if (index.getValue() < 0 || index.getValue() >= trees.size()) {
+    	if (index.getValue() < 0 || index.getValue() >= getTreeCount()) {
     		logP = Double.NEGATIVE_INFINITY;
     		return logP;
     	}
-        tree0.assignFrom(trees.get(index.getValue()));
-        tree0.setEverythingDirty(true);
+        updateMatrixCache();
         // flag as dirty to treelikelihood
         // treelikelihood.requiresRecalculation();
-        logP += treelikelihood.calculateLogP();
+        logP += calcLogP(treelikelihood, compactLikelihood, index.getValue());
         return logP;
 	}
 		
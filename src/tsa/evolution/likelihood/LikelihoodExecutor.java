@@ -0,0 +1,104 @@
+package tsa.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import beast.base.core.Description;
+import beast.base.core.ProgramStatus;
+
+@Description("Process wide budget of threads for likelihood calculations. Runs that evaluate several models "
+		+ "at once, like TSAModelSelector, split the budget between models and the trees within a model, so that "
+		+ "the number of busy threads stays within the budget. Worker crews and model executors are registered "
+		+ "here, so that everything still running at the end of a run can be shut down in one go.")
+public class LikelihoodExecutor {
+	/** total number of threads, 0 for ProgramStatus.m_nThreads **/
+	private static int budget = 0;
+	/** threads for each tree set likelihood, 0 for the whole budget **/
+	private static int threadsPerLikelihood = 0;
+	private static final Set<WorkerCrew> crews = new LinkedHashSet<>();
+	private static final List<ExecutorService> executors = new ArrayList<>();
+
+	public static synchronized void setBudget(int threads) {
+		budget = Math.max(0, threads);
+		threadsPerLikelihood = 0;
+	}
+
+	public static synchronized int getBudget() {
+		return budget > 0 ? budget : Math.max(1, ProgramStatus.m_nThreads);
+	}
+
+	/** number of threads a tree set likelihood uses unless specified otherwise **/
+	public static synchronized int getThreadsPerLikelihood() {
+		return threadsPerLikelihood > 0 ? Math.min(threadsPerLikelihood, getBudget()) : getBudget();
+	}
+
+	/**
+	 * Split the budget between models that are evaluated at the same time and the trees of each model.
+	 * Models are independent, so they are preferred over trees, which synchronise after every evaluation.
+	 * Afterwards, getThreadsPerLikelihood() is such that models times threads per likelihood is within budget.
+	 *
+	 * @param modelCount number of models to evaluate
+	 * @return number of models to evaluate at the same time
+	 */
+	public static synchronized int split(int modelCount) {
+		int total = getBudget();
+		int models = Math.max(1, Math.min(modelCount, total));
+		threadsPerLikelihood = Math.max(1, total / models);
+		return models;
+	}
+
+	/** new worker crew, which is shut down by shutdown() if it is still running then **/
+	public static synchronized WorkerCrew newCrew(String name, int workerCount) {
+		WorkerCrew crew = new WorkerCrew(name, workerCount);
+		crews.add(crew);
+		return crew;
+	}
+
+	static synchronized void remove(WorkerCrew crew) {
+		crews.remove(crew);
+	}
+
+	/** new executor with daemon threads for evaluating models in parallel, which is shut down by shutdown() **/
+	public static synchronized ExecutorService newModelExecutor(String name, int threadCount) {
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executors.add(executor);
+		return executor;
+	}
+
+	/** number of worker crews that have not been shut down **/
+	public static synchronized int getCrewCount() {
+		return crews.size();
+	}
+
+	/**
+	 * Stop all worker crews and model executors. Likelihoods using these crews cannot be calculated afterwards.
+	 * The split of the budget is undone, so later likelihoods use the whole budget again.
+	 */
+	public static void shutdown() {
+		List<WorkerCrew> crewsToStop;
+		List<ExecutorService> executorsToStop;
+		synchronized (LikelihoodExecutor.class) {
+			crewsToStop = new ArrayList<>(crews);
+			executorsToStop = new ArrayList<>(executors);
+			crews.clear();
+			executors.clear();
+			threadsPerLikelihood = 0;
+		}
+		for (ExecutorService executor : executorsToStop) {
+			executor.shutdown();
+		}
+		for (WorkerCrew crew : crewsToStop) {
+			crew.shutdown();
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package tsa.evolution.likelihood;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Log;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLParserException;
+import tsa.evolution.likelihood.TreeSetLikelihood.LoadedTrees;
+
+@Description("Process that evaluates one slice of a tree set for a ShardedTreeSetLikelihood. "
+		+ "It receives the tree likelihood as XML once, and then parameter values for every evaluation, "
+		+ "and returns the log of the mean likelihood over the trees in its slice. "
+		+ "Since the XML can create any class, only a coordinator that knows the worker's token is served.")
+public class ShardWorker {
+	/** messages from coordinator to worker **/
+	final static int INIT = 1, EVALUATE = 2, CLOSE = 3, TREE_LOGP = 4;
+	/** longest token accepted, so a stranger cannot make the worker allocate much **/
+	final static int MAX_TOKEN_LENGTH = 256;
+	/** milliseconds a new connection has to send its token **/
+	final static int AUTHENTICATION_TIMEOUT = 10000;
+	/** status of replies from worker to coordinator **/
+	final static int OK = 0, ERROR = 1;
+
+	final ServerSocket serverSocket;
+	/** secret a coordinator must send before anything else **/
+	final byte [] token;
+
+	/** tree set likelihood for the slice, null if the slice is empty **/
+	TreeSetLikelihood likelihood;
+	/** parameters in the order the coordinator sends their values **/
+	List<StateNode> parameters;
+	State state;
+	int treeCount;
+
+	/**
+	 * listen on port of the loopback address, or on any free port if port is 0
+	 * @param token secret that the coordinator sends to identify itself
+	 */
+	public ShardWorker(int port, String token) throws IOException {
+		if (token == null || token.length() == 0) {
+			throw new IllegalArgumentException("Worker needs a token");
+		}
+		this.token = token.getBytes(StandardCharsets.UTF_8);
+		serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+	}
+
+	/** random token for a coordinator to start workers with **/
+	public static String newToken() {
+		byte [] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder b = new StringBuilder();
+		for (byte x : bytes) {
+			b.append(String.format("%02x", x));
+		}
+		return b.toString();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * serve a single coordinator until it closes the connection. Connections that do not start
+	 * with INIT and the token are closed, after which the worker waits for the next one.
+	 */
+	public void serve() throws IOException {
+		Socket socket;
+		DataInputStream in;
+		DataOutputStream out;
+		while (true) {
+			socket = serverSocket.accept();
+			// do not let a stranger that sends nothing block the worker
+			socket.setSoTimeout(AUTHENTICATION_TIMEOUT);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (authenticate(in)) {
+				break;
+			}
+			Log.warning("Refused connection without valid token from port " + socket.getPort());
+			try {
+				out.writeInt(ERROR);
+				writeString(out, "Invalid token");
+				out.flush();
+			} catch (IOException e) {
+				// stranger is gone already
+			}
+			socket.close();
+		}
+		serverSocket.close();
+		try {
+			socket.setSoTimeout(0);
+			socket.setTcpNoDelay(true);
+			init(in, out);
+			out.flush();
+			while (true) {
+				int message;
+				try {
+					message = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				switch (message) {
+				case EVALUATE:
+					evaluate(in, out);
+					break;
+				case TREE_LOGP:
+					sendTreeLogP(out);
+					break;
+				case CLOSE:
+					return;
+				default:
+					throw new IOException("Unknown message " + message);
+				}
+				out.flush();
+			}
+		} finally {
+			socket.close();
+			if (likelihood instanceof ThreadedTreeSetLikelihood) {
+				((ThreadedTreeSetLikelihood) likelihood).shutdown();
+			}
+		}
+	}
+
+	/** whether the connection starts with INIT and the token, in which case the rest of INIT follows **/
+	private boolean authenticate(DataInputStream in) {
+		try {
+			if (in.readInt() != INIT) {
+				return false;
+			}
+			int length = in.readInt();
+			if (length < 0 || length > MAX_TOKEN_LENGTH) {
+				return false;
+			}
+			byte [] bytes = new byte[length];
+			in.readFully(bytes);
+			return MessageDigest.isEqual(bytes, token);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void init(DataInputStream in, DataOutputStream out) throws IOException {
+		String xml = readString(in);
+		File treeSetFile = new File(readString(in));
+		int burnin = in.readInt();
+		boolean useFloat = in.readBoolean();
+		boolean shareSubtrees = in.readBoolean();
+		int matrixCacheSize = in.readInt();
+		double matrixCacheTolerance = in.readDouble();
+		int threads = in.readInt();
+		int slice = in.readInt();
+		int sliceCount = in.readInt();
+		String [] ids = new String[in.readInt()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = readString(in);
+		}
+
+		try {
+			GenericTreeLikelihood treeLikelihood = (GenericTreeLikelihood) new XMLParser().parseBareFragment(xml, true);
+			Tree tree = (Tree) treeLikelihood.treeInput.get();
+			LoadedTrees trees = LoadedTrees.load(treeSetFile, burnin, useFloat, tree.getTaxaNames(), slice, sliceCount);
+			treeCount = trees.getTreeCount();
+
+			Map<String, StateNode> map = new LinkedHashMap<>();
+			collectParameters(treeLikelihood, map, new HashSet<>());
+			parameters = new ArrayList<>();
+			for (String id : ids) {
+				if (!map.containsKey(id)) {
+					throw new IllegalArgumentException("Could not find parameter " + id + " in tree likelihood");
+				}
+				parameters.add(map.get(id));
+			}
+
+			if (treeCount > 0) {
+				likelihood = threads > 1 ? new ThreadedTreeSetLikelihood() : new TreeSetLikelihood();
+				likelihood.setID("shard" + slice);
+				likelihood.setTrees(trees);
+				List<Object> inputs = new ArrayList<>(Arrays.asList("treeSetFile", treeSetFile, "treeLikelihood", treeLikelihood,
+						"burnin", burnin, "float", useFloat, "shareSubtrees", shareSubtrees, "matrixCacheSize", matrixCacheSize,
+						"matrixCacheTolerance", matrixCacheTolerance));
+				if (threads > 1) {
+					inputs.add("threads");
+					inputs.add(threads);
+				}
+				likelihood.initByName(inputs.toArray());
+
+				state = new State();
+				for (StateNode parameter : parameters) {
+					state.stateNodeInput.setValue(parameter, state);
+				}
+				state.initAndValidate();
+				state.initialise();
+				state.setPosterior(likelihood);
+			}
+			Log.warning("Shard " + slice + " of " + sliceCount + " has " + treeCount + " trees");
+		} catch (RuntimeException | XMLParserException e) {
+			e.printStackTrace();
+			out.writeInt(ERROR);
+			writeString(out, e.getClass().getSimpleName() + ": " + e.getMessage());
+			return;
+		}
+		out.writeInt(OK);
+		out.writeInt(treeCount);
+	}
+
+	private void evaluate(DataInputStream in, DataOutputStream out) throws IOException {
+		for (StateNode parameter : parameters) {
+			int dimension = in.readInt();
+			double [] values = new double[dimension];
+			for (int i = 0; i < dimension; i++) {
+				values[i] = in.readDouble();
+			}
+			setValues(parameter, values);
+		}
+		if (likelihood == null) {
+			out.writeInt(OK);
+			out.writeDouble(Double.NEGATIVE_INFINITY);
+			return;
+		}
+		double logP;
+		try {
+			// parameters were changed outside any operator, so let everything recalculate, as MCMC does at the start
+			state.store(-1);
+			state.setEverythingDirty(true);
+			state.checkCalculationNodesDirtiness();
+			logP = likelihood.calculateLogP();
+			state.setEverythingDirty(false);
+			state.acceptCalculationNodes();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			out.writeInt(ERROR);
+			writeString(out, e.getClass().getSimpleName() + ": " + e.getMessage());
+			return;
+		}
+		out.writeInt(OK);
+		out.writeDouble(logP);
+	}
+
+	/** log likelihoods of the trees in the slice as of the last evaluation **/
+	private void sendTreeLogP(DataOutputStream out) throws IOException {
+		double [] treeLogP = likelihood == null ? new double[0] : likelihood.getTreeLogP();
+		out.writeInt(OK);
+		out.writeInt(treeLogP.length);
+		for (double d : treeLogP) {
+			out.writeDouble(d);
+		}
+	}
+
+	static boolean isParameter(BEASTInterface o) {
+		return o instanceof RealParameter || o instanceof IntegerParameter || o instanceof BooleanParameter;
+	}
+
+	/**
+	 * Parameters reachable from o that have an ID, skipping those of trees. Those without ID cannot be changed
+	 * by operators in XML, so are taken to be constant, and workers get their values with the tree likelihood.
+	 * Used by both coordinator and workers, so they agree on the parameters that are sent.
+	 */
+	static void collectParameters(BEASTInterface o, Map<String, StateNode> map, Set<BEASTInterface> done) {
+		if (!done.add(o)) {
+			return;
+		}
+		if (isParameter(o) && o.getID() != null) {
+			if (map.containsKey(o.getID())) {
+				throw new IllegalArgumentException("Parameters in tree likelihood should have unique IDs, "
+						+ "but " + o.getID() + " occurs more than once");
+			}
+			map.put(o.getID(), (StateNode) o);
+		}
+		for (BEASTInterface bi : o.listActiveBEASTObjects()) {
+			if (!(bi instanceof Tree)) {
+				collectParameters(bi, map, done);
+			}
+		}
+	}
+
+	static void setValues(StateNode parameter, double [] values) {
+		if (parameter instanceof RealParameter) {
+			RealParameter p = (RealParameter) parameter;
+			if (p.getDimension() != values.length) {
+				p.setDimension(values.length);
+			}
+			for (int i = 0; i < values.length; i++) {
+				p.setValue(i, values[i]);
+			}
+		} else if (parameter instanceof IntegerParameter) {
+			IntegerParameter p = (IntegerParameter) parameter;
+			if (p.getDimension() != values.length) {
+				p.setDimension(values.length);
+			}
+			for (int i = 0; i < values.length; i++) {
+				p.setValue(i, (int) values[i]);
+			}
+		} else {
+			BooleanParameter p = (BooleanParameter) parameter;
+			if (p.getDimension() != values.length) {
+				p.setDimension(values.length);
+			}
+			for (int i = 0; i < values.length; i++) {
+				p.setValue(i, values[i] != 0);
+			}
+		}
+	}
+
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte [] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Start a worker on the port given as argument, or any free port if there is none. The token is read
+	 * from the first line of stdin, so it does not show in the process list. The first line written to
+	 * stdout is the port number, after which the worker serves one coordinator and exits.
+	 * When started by hand, list the worker as port:token in the workers input of ShardedTreeSetLikelihood.
+	 */
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.only", "true");
+		String token = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+		if (token == null || token.trim().length() == 0) {
+			System.err.println("Expected token on the first line of stdin");
+			System.exit(1);
+		}
+		ShardWorker worker = new ShardWorker(args.length > 0 ? Integer.parseInt(args[0]) : 0, token.trim());
+		System.out.println(worker.getPort());
+		System.out.flush();
+		worker.serve();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,365 @@
+package tsa.evolution.likelihood;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.StateNode;
+import beast.base.parser.XMLProducer;
+
+@Description("Tree set likelihood that divides the tree set over worker processes, each of which only loads and "
+		+ "evaluates its own slice of the trees. For every evaluation, parameter values are sent to the workers, which "
+		+ "return the log of the mean likelihood over their slice, from which the log of the mean over all trees "
+		+ "is calculated. Workers are started on this machine, or can be started by hand with ShardWorker.")
+public class ShardedTreeSetLikelihood extends TreeSetLikelihood {
+	final public Input<Integer> shardsInput = new Input<>("shards", "number of worker processes to start, "
+			+ "each evaluating an equal part of the tree set (default 2)", 2);
+	final public Input<String> workersInput = new Input<>("workers", "comma separated list of port:token of workers "
+			+ "started by hand with ShardWorker on this machine, where token is the line given to the worker on stdin. "
+			+ "If specified, no workers are started and shards is ignored");
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads each worker uses to evaluate "
+			+ "its trees (default 1)", 1);
+	final public Input<String> javaOptionsInput = new Input<>("javaOptions", "options for the java virtual machine of "
+			+ "started workers, e.g. \"-Xmx8g\"", "");
+	final public Input<String> classPathInput = new Input<>("classpath", "class path for started workers. By default, "
+			+ "the class path of this process plus the locations of all classes in the tree likelihood");
+
+	@Description("Connection to a worker evaluating one slice of the tree set")
+	static class Shard {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		/** worker process, null if the worker was started by hand **/
+		final Process process;
+		/** secret the worker expects before anything else **/
+		final String token;
+		int treeCount;
+
+		Shard(int port, String token, Process process) throws IOException {
+			this.process = process;
+			this.token = token;
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		/** throw exception with worker's message if it could not do what was asked **/
+		void checkStatus() throws IOException {
+			if (in.readInt() != ShardWorker.OK) {
+				throw new RuntimeException("Worker on port " + socket.getPort() + " failed: " + ShardWorker.readString(in));
+			}
+		}
+
+		void close() {
+			try {
+				out.writeInt(ShardWorker.CLOSE);
+				out.flush();
+				socket.close();
+			} catch (IOException e) {
+				// worker is gone already
+			}
+			if (process != null) {
+				try {
+					process.waitFor();
+				} catch (InterruptedException e) {
+					process.destroy();
+				}
+			}
+		}
+	}
+
+	List<Shard> shards;
+	/** parameters the tree likelihood depends on, whose values are sent to the workers **/
+	List<StateNode> parameters;
+	int treeCount;
+	/**
+	 * log likelihood of every tree, filled by getTreeLogP(). This is not treeLogP, which stays null,
+	 * so TreeSetLikelihood does not copy it at every store()
+	 **/
+	double [] shardTreeLogP;
+	/** whether the last evaluation of the workers was for the current state **/
+	boolean shardTreeLogPCurrent;
+
+	@Override
+	public void initAndValidate() {
+		// trees are loaded by the workers, not here
+		treelikelihood = treeLikelihoodInput.get();
+
+		Map<String, StateNode> map = new LinkedHashMap<>();
+		ShardWorker.collectParameters(treelikelihood, map, new HashSet<>());
+		parameters = new ArrayList<>(map.values());
+		String xml = new XMLProducer().toRawXML(treelikelihood);
+
+		shards = new ArrayList<>();
+		try {
+			if (workersInput.get() != null && workersInput.get().trim().length() > 0) {
+				for (String worker : workersInput.get().split(",")) {
+					String [] strs = worker.trim().split(":", 2);
+					if (strs.length != 2 || strs[1].trim().length() == 0) {
+						throw new IllegalArgumentException("Expected port:token in workers, but found " + worker.trim());
+					}
+					shards.add(new Shard(Integer.parseInt(strs[0].trim()), strs[1].trim(), null));
+				}
+			} else {
+				String classPath = classPathInput.get() != null ? classPathInput.get() : getClassPath();
+				for (int i = 0; i < shardsInput.get(); i++) {
+					shards.add(startWorker(classPath));
+				}
+			}
+
+			for (int i = 0; i < shards.size(); i++) {
+				DataOutputStream out = shards.get(i).out;
+				out.writeInt(ShardWorker.INIT);
+				ShardWorker.writeString(out, shards.get(i).token);
+				ShardWorker.writeString(out, xml);
+				ShardWorker.writeString(out, treeSetFileInput.get().getAbsolutePath());
+				out.writeInt(burninInput.get());
+				out.writeBoolean(useFloatInput.get());
+				out.writeBoolean(shareSubtreesInput.get());
+				out.writeInt(matrixCacheSizeInput.get());
+				out.writeDouble(matrixCacheToleranceInput.get());
+				out.writeInt(threadsInput.get());
+				out.writeInt(i);
+				out.writeInt(shards.size());
+				out.writeInt(parameters.size());
+				for (StateNode parameter : parameters) {
+					ShardWorker.writeString(out, parameter.getID());
+				}
+				out.flush();
+			}
+			treeCount = 0;
+			for (Shard shard : shards) {
+				shard.checkStatus();
+				shard.treeCount = shard.in.readInt();
+				treeCount += shard.treeCount;
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw new RuntimeException("Could not set up workers: " + e.getMessage());
+		} catch (RuntimeException e) {
+			shutdown();
+			throw e;
+		}
+		if (treeCount == 0) {
+			shutdown();
+			throw new IllegalArgumentException("No trees left in " + treeSetFileInput.get().getPath() + " after burn-in");
+		}
+		shardTreeLogP = new double[treeCount];
+		shardTreeLogPCurrent = false;
+		Log.warning.println(getID() + " divides " + treeCount + " trees over " + shards.size() + " workers");
+	}
+
+	private Shard startWorker(String classPath) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if (javaOptionsInput.get().trim().length() > 0) {
+			command.addAll(Arrays.asList(javaOptionsInput.get().trim().split("\\s+")));
+		}
+		command.add("-cp");
+		command.add(classPath);
+		command.add(ShardWorker.class.getName());
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		// the token goes through stdin, since arguments can be seen by other users
+		String token = ShardWorker.newToken();
+		try (Writer writer = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+			writer.write(token + "\n");
+		} catch (IOException e) {
+			process.destroy();
+			throw e;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line = reader.readLine();
+		if (line == null) {
+			process.destroy();
+			throw new IOException("Worker did not start: " + String.join(" ", command));
+		}
+		// keep reading, so the worker does not block on a full pipe
+		Thread drain = new Thread(() -> {
+			try {
+				String str;
+				while ((str = reader.readLine()) != null) {
+					Log.info(str);
+				}
+			} catch (IOException e) {
+				// worker is gone
+			}
+		});
+		drain.setDaemon(true);
+		drain.start();
+		try {
+			return new Shard(Integer.parseInt(line.trim()), token, process);
+		} catch (IOException | NumberFormatException e) {
+			process.destroy();
+			throw new IOException("Could not connect to worker: " + e.getMessage());
+		}
+	}
+
+	/** class path of this process plus the locations of all classes in the tree likelihood **/
+	private String getClassPath() {
+		Set<String> paths = new LinkedHashSet<>(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+		Set<BEASTInterface> objects = new LinkedHashSet<>();
+		collectObjects(treelikelihood, objects);
+		Set<Class<?>> classes = new LinkedHashSet<>();
+		classes.add(ShardWorker.class);
+		for (BEASTInterface o : objects) {
+			classes.add(o.getClass());
+		}
+		for (Class<?> c : classes) {
+			CodeSource source = c.getProtectionDomain().getCodeSource();
+			if (source != null && source.getLocation() != null) {
+				try {
+					paths.add(new File(source.getLocation().toURI()).getPath());
+				} catch (URISyntaxException e) {
+					// leave it to the class path of this process
+				}
+			}
+		}
+		paths.remove("");
+		return String.join(File.pathSeparator, paths);
+	}
+
+	private static void collectObjects(BEASTInterface o, Set<BEASTInterface> objects) {
+		if (objects.add(o)) {
+			for (BEASTInterface bi : o.listActiveBEASTObjects()) {
+				collectObjects(bi, objects);
+			}
+		}
+	}
+
+	@Override
+	protected int getTreeCount() {
+		return treeCount;
+	}
+
+	@Override
+	public double calculateLogP() {
+		long start = System.nanoTime();
+		logP = evaluate();
+		shardTreeLogPCurrent = true;
+		countEvaluation(start);
+		return logP;
+	}
+
+	/** let the workers evaluate the current parameter values, and return the log of the mean likelihood **/
+	private double evaluate() {
+		try {
+			// workers evaluate their slices at the same time
+			for (Shard shard : shards) {
+				DataOutputStream out = shard.out;
+				out.writeInt(ShardWorker.EVALUATE);
+				for (StateNode parameter : parameters) {
+					Function values = (Function) parameter;
+					int dimension = values.getDimension();
+					out.writeInt(dimension);
+					for (int i = 0; i < dimension; i++) {
+						out.writeDouble(values.getArrayValue(i));
+					}
+				}
+				out.flush();
+			}
+			double [] shardLogP = new double[shards.size()];
+			double max = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < shards.size(); k++) {
+				Shard shard = shards.get(k);
+				shard.checkStatus();
+				shardLogP[k] = shard.in.readDouble();
+				if (shard.treeCount > 0) {
+					max = Math.max(max, shardLogP[k]);
+				}
+			}
+
+			// each shard has the log of the mean over its trees, so weigh by number of trees
+			if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) {
+				return max;
+			}
+			double sum = 0;
+			for (int k = 0; k < shards.size(); k++) {
+				if (shards.get(k).treeCount > 0) {
+					sum += shards.get(k).treeCount * Math.exp(shardLogP[k] - max);
+				}
+			}
+			return max + Math.log(sum / treeCount);
+		} catch (IOException e) {
+			throw new RuntimeException("Lost connection to worker: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Log likelihood of every tree, collected from the workers. This is only done on request, as by
+	 * TreeSetLikelihoodLogger, since sending all of them at every evaluation would cost more than the evaluation.
+	 * If the last evaluation was rejected, the workers evaluate the current state again first.
+	 */
+	@Override
+	public double [] getTreeLogP() {
+		if (shards.size() == 0) {
+			return null;
+		}
+		if (!shardTreeLogPCurrent) {
+			evaluate();
+			shardTreeLogPCurrent = true;
+		}
+		try {
+			for (Shard shard : shards) {
+				shard.out.writeInt(ShardWorker.TREE_LOGP);
+				shard.out.flush();
+			}
+			// slices are consecutive, so trees of later shards come later
+			int offset = 0;
+			for (Shard shard : shards) {
+				shard.checkStatus();
+				int n = shard.in.readInt();
+				for (int i = 0; i < n; i++) {
+					shardTreeLogP[offset + i] = shard.in.readDouble();
+				}
+				offset += n;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Lost connection to worker: " + e.getMessage());
+		}
+		return shardTreeLogP;
+	}
+
+	@Override
+	protected void restore() {
+		// workers last evaluated the rejected state
+		shardTreeLogPCurrent = false;
+		super.restore();
+	}
+
+	/** stop all workers, after which this likelihood cannot be calculated any more **/
+	public void shutdown() {
+		for (Shard shard : shards) {
+			shard.close();
+		}
+		shards.clear();
+	}
+
+}
@@ -0,0 +1,291 @@
+package tsa.evolution.likelihood;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.tree.Tree;
+import tsa.evolution.tree.ArrayTreeSet;
+import tsa.evolution.tree.BinaryTreeSet;
+import tsa.evolution.tree.NexusTreeReader;
+import tsa.evolution.tree.TreeSetIngest;
+
+@Description("Tree set likelihood for Nexus tree files too large to keep in memory. At every calculation, the trees "
+		+ "are read from the file in chunks by a background thread, which parses the next chunks while the current "
+		+ "one is evaluated, so only a few chunks are in memory at any time. The file may be gzip compressed. "
+		+ "Gives the same result as TreeSetLikelihood. Binary tree sets are memory mapped, so need no streaming "
+		+ "and are handled as by TreeSetLikelihood.")
+public class StreamingTreeSetLikelihood extends TreeSetLikelihood {
+	final public Input<Integer> chunkSizeInput = new Input<>("chunkSize", "number of trees read and evaluated at a time (default 1000)", 1000);
+	final public Input<Integer> prefetchInput = new Input<>("prefetch", "number of chunks read ahead of the one being evaluated (default 2)", 2);
+
+	/** whether trees are streamed, false for binary tree sets **/
+	boolean streaming;
+	/** taxa of the tree of the tree likelihood, which the trees are reduced to **/
+	String [] names;
+	/** position of taxa of the tree of the tree likelihood, other taxa are removed from the trees **/
+	Map<String, Integer> taxonIndex;
+	/** number of trees in the file, and number of those to skip as burn-in **/
+	int fileTreeCount, burninCount;
+	/** chunks trees are read into, re-used in every calculation **/
+	List<ArrayTreeSet> chunks;
+	/** number of the first tree after burn-in in the chunk being evaluated, which is treeSet **/
+	int chunkStart;
+
+	@Override
+	public void initAndValidate() {
+		if (BinaryTreeSet.isBinaryTreeSet(treeSetFileInput.get())) {
+			Log.warning.println(getID() + ": " + treeSetFileInput.get().getName() + " is a binary tree set, which is memory mapped instead of streamed");
+			streaming = false;
+			super.initAndValidate();
+			return;
+		}
+		if (chunkSizeInput.get() < 1 || prefetchInput.get() < 1) {
+			throw new IllegalArgumentException("chunkSize and prefetch should be at least 1");
+		}
+		streaming = true;
+		treelikelihood = treeLikelihoodInput.get();
+		names = ((Tree) treelikelihood.treeInput.get()).getTaxaNames();
+
+		// one pass over the file to count trees and check taxa
+		String [] setNames;
+		try (NexusTreeReader reader = new NexusTreeReader(treeSetFileInput.get())) {
+			setNames = reader.getTaxaNames();
+			fileTreeCount = reader.countTrees();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + treeSetFileInput.get().getPath() + ": " + e.getMessage());
+		}
+		if (fileTreeCount == 0) {
+			throw new IllegalArgumentException("Could not find any trees in nexus file " + treeSetFileInput.get().getName());
+		}
+		taxonIndex = TreeSetIngest.index(names);
+		Map<String, Integer> setIndex = TreeSetIngest.index(setNames);
+		for (String id : names) {
+			if (!setIndex.containsKey(id)) {
+				throw new IllegalArgumentException("Cannot find taxon " + id + " from tree in list of taxa names "
+						+ "in tree set. This may be due to a spelling error, or different case (matching is case sensitive).");
+			}
+		}
+		Set<String> tabu = new HashSet<>();
+		for (String name : setNames) {
+			if (!taxonIndex.containsKey(name)) {
+				tabu.add(name);
+			}
+		}
+		if (tabu.size() > 0) {
+			Log.warning.println("Removing the following taxa from the tree set (because there is no data for them): " + tabu.toString());
+			Log.warning.println(names.length + " taxa left.");
+		}
+		burninCount = calcBurnin(fileTreeCount, burninInput.get());
+		if (getTreeCount() == 0) {
+			throw new IllegalArgumentException("No trees left in " + treeSetFileInput.get().getPath() + " after burn-in");
+		}
+		treeLogP = new double[getTreeCount()];
+		storedTreeLogP = new double[getTreeCount()];
+
+		chunks = new ArrayList<>();
+		for (int i = 0; i < prefetchInput.get() + 1; i++) {
+			chunks.add(new ArrayTreeSet(names, useFloatInput.get(), chunkSizeInput.get()));
+		}
+		treeSet = chunks.get(0);
+		leafNr = null;
+		compactLikelihood = CompactTreeLikelihood.newInstance(treelikelihood, treeSet);
+		if (compactLikelihood == null) {
+			Log.warning.println("Tree likelihood " + treelikelihood.getID() + " uses features not supported by CompactTreeLikelihood, "
+					+ "so trees will be copied into the tree of the tree likelihood for evaluation.");
+		} else {
+			// subtrees cannot be shared, since the whole tree set is never in memory
+			initMatrixCache();
+			compactLikelihood.setMatrixCache(matrixCache);
+		}
+		Log.warning.println(getID() + " streams " + getTreeCount() + " trees in chunks of " + chunkSizeInput.get());
+	}
+
+	@Override
+	protected int getTreeCount() {
+		if (!streaming) {
+			return super.getTreeCount();
+		}
+		return fileTreeCount - burninCount;
+	}
+
+	@Override
+	public double calculateLogP() {
+		if (!streaming) {
+			return super.calculateLogP();
+		}
+		long start = System.nanoTime();
+		int n = getTreeCount();
+		updateMatrixCache();
+		ChunkReader reader = new ChunkReader();
+		try {
+			int done = 0;
+			ArrayTreeSet chunk;
+			while ((chunk = reader.take()) != null) {
+				if (done + chunk.getTreeCount() > n) {
+					throw new RuntimeException("Tree set file " + treeSetFileInput.get().getPath() + " changed while running");
+				}
+				treeSet = chunk;
+				chunkStart = done;
+				if (compactLikelihood != null) {
+					compactLikelihood.setTreeSet(chunk);
+				}
+				for (int i = done; i < done + chunk.getTreeCount(); i++) {
+					treeLogP[i] = calcLogP(treelikelihood, compactLikelihood, i);
+				}
+				done += chunk.getTreeCount();
+				reader.recycle(chunk);
+			}
+			if (done != n) {
+				throw new RuntimeException("Tree set file " + treeSetFileInput.get().getPath() + " changed while running");
+			}
+		} finally {
+			reader.close();
+		}
+
+		// take average over P from treeLogP
+		double max = treeLogP[0];
+		for (double d : treeLogP) {
+			max = Math.max(d, max);
+		}
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += Math.exp(treeLogP[i] - max);
+		}
+		sum /= n;
+		logP = max + Math.log(sum);
+		countEvaluation(start);
+		return logP;
+	}
+
+	/** i-th tree after burn-in, which should be in the chunk being evaluated **/
+	@Override
+	protected Tree getTree(int i) {
+		if (!streaming) {
+			return super.getTree(i);
+		}
+		return treeSet.getTree(indexInChunk(i), leafNr);
+	}
+
+	@Override
+	protected double calcLogP(GenericTreeLikelihood likelihood, CompactTreeLikelihood compact, int i) {
+		if (!streaming) {
+			return super.calcLogP(likelihood, compact, i);
+		}
+		if (compact != null && compact.isApplicable()) {
+			return compact.calculateLogP(indexInChunk(i));
+		}
+		assignTree((Tree) likelihood.treeInput.get(), i);
+		return likelihood.calculateLogP();
+	}
+
+	@Override
+	protected void assignTree(Tree tree, int i) {
+		if (!streaming) {
+			super.assignTree(tree, i);
+			return;
+		}
+		treeSet.assignTo(tree, indexInChunk(i), leafNr);
+	}
+
+	/** position in the chunk being evaluated of the i-th tree after burn-in **/
+	private int indexInChunk(int i) {
+		if (i < chunkStart || i >= chunkStart + treeSet.getTreeCount()) {
+			throw new IllegalArgumentException("Tree " + i + " is not in the chunk of trees " + chunkStart + " to "
+					+ (chunkStart + treeSet.getTreeCount() - 1) + " that is in memory");
+		}
+		return i - chunkStart;
+	}
+
+	@Description("Background thread reading the trees after burn-in into chunks, a few chunks ahead of their evaluation")
+	class ChunkReader implements Runnable {
+		/** marks the end of the trees in ready **/
+		final Object END = new Object();
+		/** chunks filled with trees, or END, or the exception or error that stopped reading **/
+		final BlockingQueue<Object> ready;
+		/** chunks that can be filled **/
+		final BlockingQueue<ArrayTreeSet> free;
+		final Thread thread;
+
+		ChunkReader() {
+			ready = new ArrayBlockingQueue<>(chunks.size() + 1);
+			free = new ArrayBlockingQueue<>(chunks.size(), false, chunks);
+			thread = new Thread(this, getID() + "-reader");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try (NexusTreeReader reader = new NexusTreeReader(treeSetFileInput.get())) {
+				for (int i = 0; i < burninCount; i++) {
+					reader.skipTree();
+				}
+				int chunkSize = chunkSizeInput.get();
+				boolean more = true;
+				while (more) {
+					ArrayTreeSet chunk = free.take();
+					chunk.clear();
+					Tree tree;
+					while (chunk.getTreeCount() < chunkSize && (tree = reader.nextTree()) != null) {
+						chunk.add(TreeSetIngest.prune(tree.getRoot(), taxonIndex));
+					}
+					more = chunk.getTreeCount() == chunkSize;
+					if (chunk.getTreeCount() > 0) {
+						ready.put(chunk);
+					}
+				}
+				ready.put(END);
+			} catch (InterruptedException e) {
+				// evaluation was abandoned
+			} catch (Throwable e) {
+				// anything, including OutOfMemoryError, must reach take(), which would wait forever otherwise.
+				// There is room, since ready can hold all chunks plus one more.
+				ready.offer(e);
+			}
+		}
+
+		/** next chunk of trees, or null if all trees were read **/
+		ArrayTreeSet take() {
+			Object o;
+			try {
+				o = ready.take();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while reading trees");
+			}
+			if (o instanceof Error) {
+				// as if it happened in this thread
+				throw (Error) o;
+			}
+			if (o instanceof Throwable) {
+				throw new RuntimeException("Could not read trees from " + treeSetFileInput.get().getPath() + ": " + ((Throwable) o).getMessage());
+			}
+			return o == END ? null : (ArrayTreeSet) o;
+		}
+
+		/** chunk is evaluated, so it can be filled again **/
+		void recycle(ArrayTreeSet chunk) {
+			free.offer(chunk);
+		}
+
+		/** stop reading, and wait till the chunks are not used any more, so the next calculation can re-use them **/
+		void close() {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -2,9 +2,6 @@ package tsa.evolution.likelihood;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 
 import beastfx.app.beast.BeastMCMC;
@@ -12,23 +9,28 @@ import beastfx.app.util.TreeFile;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.core.ProgramStatus;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Tree;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
 
 @Description("Threaded version of the TreeSetLikelihood")
 public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
 	
 	TreeLikelihood [] treelikelihoods;
+	/** per thread evaluator working directly on the tree set, null where not supported **/
+	CompactTreeLikelihood [] compactLikelihoods;
 	int threadCount;
-    private ExecutorService pool = null;
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
-    double [] treeLogP;
+    private WorkerCrew crew;
+    private WorkerCrew.Job job, subtreeJob, rootJob;
+    /** first subtree of the level that subtreeJob works on **/
+    private int levelStart;
     
     /** private list of likelihoods, to notify framework of TreeLikelihoods being created in initAndValidate() **/
     final public Input<List<TreeLikelihood>> likelihoodsInput = new Input<>("*","",new ArrayList<>());
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to evaluate trees. "
+    		+ "By default, this likelihood's share of the process wide thread budget, see LikelihoodExecutor", 0);
 	
     public ThreadedTreeSetLikelihood() {}
     
@@ -37,6 +39,13 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
 		initByName("treeSetFile", treeFile.getPath(), "treeLikelihood", treeLikelihood, "burnin", burnin);
 	}
 
+	/** likelihood over trees that were loaded before, e.g. by another likelihood for the same taxa **/
+	public ThreadedTreeSetLikelihood(TreeLikelihood treeLikelihood, LoadedTrees trees) {
+		setTrees(trees);
+		initByName("treeSetFile", trees.file.getPath(), "treeLikelihood", treeLikelihood, "burnin", trees.burnin,
+				"float", trees.useFloat);
+	}
+
 
 	@Description("Tree likelihood that marks the whole tree filthy every time requiresRecalculation() is called")
 	class MyTreeLikelihood extends TreeLikelihood {
@@ -49,21 +58,24 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
 	}
 	
 
+	@Override
+	protected int getThreadCount() {
+		// called by initMatrixCache() before threadCount is set
+		return threadsInput.get() > 0 ? threadsInput.get() : LikelihoodExecutor.getThreadsPerLikelihood();
+	}
+
 	@Override
 	public void initAndValidate() {
 		super.initAndValidate();
-		
-		treeLogP  = new double[trees.size()];
 
 		TreeLikelihood treelikelihood0 = (TreeLikelihood) treeLikelihoodInput.get();
 		Tree tree0 = (Tree) treelikelihood0.treeInput.get();
         
         // set up threading specific stuff
-		threadCount = ProgramStatus.m_nThreads;
+		threadCount = getThreadCount();
 
 		treelikelihoods = new TreeLikelihood[threadCount];
-    	pool = Executors.newFixedThreadPool(threadCount);
-    	int [] boundaries = calcBoundaryPoints(trees.size());
+		compactLikelihoods = new CompactTreeLikelihood[threadCount];
     	for (int i = 0; i < threadCount; i++) {
     		Alignment data = treelikelihood0.dataInput.get();
     		//try {
@@ -84,37 +96,65 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
 //                     "useJava", new Boolean(treelikelihood0.getInput("useJava")+"")
     				);
     		
-    		likelihoodCallers.add(new TreeLikelihoodCaller(treelikelihoods[i], boundaries[i], boundaries[i+1]));
+    		compactLikelihoods[i] = CompactTreeLikelihood.newInstance(treelikelihoods[i], treeSet);
+    		if (compactLikelihoods[i] != null) {
+    			compactLikelihoods[i].setMatrixCache(matrixCache);
+    		}
     	}
 
+    	crew = LikelihoodExecutor.newCrew(getID() == null ? "TreeSetLikelihood" : getID(), threadCount);
+    	job = (worker, from, to) -> {
+  			for (int i = from; i < to; i++) {
+  				treeLogP[i] = calcLogP(treelikelihoods[worker], compactLikelihoods[worker], i);
+  			}
+    	};
+    	subtreeJob = (worker, from, to) -> {
+  			for (int k = from; k < to; k++) {
+  				compactLikelihoods[worker].calculateSubtree(subtreeTable, subtreePartials, levelStart + k);
+  			}
+    	};
+    	rootJob = (worker, from, to) -> {
+  			for (int i = from; i < to; i++) {
+  				treeLogP[i] = compactLikelihoods[worker].calculateRootLogP(subtreePartials, subtreeTable.getRoot(i));
+  			}
+    	};
+
 	}
 	
-	private int[] calcBoundaryPoints(int n) {
-		int [] boundaries = new int[threadCount + 1];
-		int range = n / threadCount;
-		for (int i = 0; i < threadCount - 1; i++) {
-			boundaries[i+1] = range * (i+1);
+	@Override
+	protected boolean useSharedSubtrees() {
+		if (!super.useSharedSubtrees()) {
+			return false;
 		}
-		boundaries[threadCount] = n;
-		return boundaries;
-    }
-
+		for (CompactTreeLikelihood compact : compactLikelihoods) {
+			if (compact == null) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	@Override
 	public double calculateLogP() {
+		long start = System.nanoTime();
         logP = 0;
         
-        try {
-            if (threadCount == 1) {
-            	likelihoodCallers.get(0).call();
-            } else {
-				pool.invokeAll(likelihoodCallers);
-            }
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+        updateMatrixCache();
+        if (useSharedSubtrees()) {
+        	for (CompactTreeLikelihood compact : compactLikelihoods) {
+        		compact.prepare();
+        	}
+        	// subtrees in a level only depend on those in lower levels
+        	for (int level = 0; level < subtreeTable.getLevelCount(); level++) {
+        		levelStart = subtreeTable.getLevelStart(level);
+        		crew.run(subtreeTable.getLevelEnd(level) - levelStart, subtreeJob);
+        	}
+        	crew.run(getTreeCount(), rootJob);
+        } else {
+        	crew.run(getTreeCount(), job);
+        }
 
-        int n = trees.size();
+        int n = getTreeCount();
         // take average over P from treeLogP
         double max = treeLogP[0];
         for (double d : treeLogP) {
@@ -127,20 +167,27 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
         sum /= n;
         logP = max + Math.log(sum);
         //System.err.println(sum + " " + logP);
+        countEvaluation(start);
         return logP;
 	}
 
-	
 	@Override
-	protected boolean requiresRecalculation() {
-//		for (TreeLikelihood t : treelikelihoods) {
-//			t.requiresRecalculation();
-//		}
-		return true;
+	public long [] getBusyTimes() {
+		long [] busyTimes = new long[crew.getWorkerCount()];
+		for (int i = 0; i < busyTimes.length; i++) {
+			busyTimes[i] = crew.getBusyTime(i);
+		}
+		return busyTimes;
+	}
+
+	
+	/** stop worker threads and release them from the thread budget, after which this likelihood cannot be calculated any more **/
+	public void shutdown() {
+		crew.shutdown();
 	}
 	
     /** create new instance of src object, connecting all inputs from src object
-     * Note if input is a SubstModel, it is duplicated as well.
+     * Note if input is a SubstModel, it is duplicated as well, unless it is a CorrelatedSubstitutionModel.
      * @param src object to be copied
      * @param i index used to extend ID with.
      * @return copy of src object
@@ -168,6 +215,9 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
                             copy.setInputValue(input.getName(), o);
                         }
                     }
+                } else if (input.get() instanceof CorrelatedSubstitutionModel) {
+                	// share: it publishes immutable snapshots that all threads can read without locking
+            		copy.setInputValue(input.getName(), input.get());
                 } else if (input.get() instanceof SubstitutionModel) {
                 	// duplicate subst models
                 	BEASTInterface substModel = (BEASTInterface) duplicate((BEASTInterface) input.get(), i);
@@ -181,33 +231,5 @@ public class ThreadedTreeSetLikelihood extends TreeSetLikelihood {
         copy.initAndValidate();
 		return copy;
 	}
-    
-    @Description("Helper class for calculating the TreeLikelihood using threads")
-    class TreeLikelihoodCaller implements Callable<Double> {
-        private final TreeLikelihood likelihood;
-        private final int start, end;
-
-        public TreeLikelihoodCaller(TreeLikelihood likelihood, int start, int end) {
-            this.likelihood = likelihood;
-            this.start = start;
-            this.end = end;
-        }
-
-        public Double call() throws Exception {
-  		  	try {
-  		    	Tree tree0 = (Tree) likelihood.treeInput.get();
-  		  		for (int i = start; i < end; i++) {
-  		        	tree0.assignFrom(trees.get(i));
-  		  			treeLogP[i] = likelihood.calculateLogP();
-  		  		}
-  		  	} catch (Exception e) {
-  		  		System.err.println("Something went wrong in thread (" + start + " to " + end +")");
-				e.printStackTrace();
-				System.exit(0);
-			}
-            return 0.0;
-        }
-
-    }
 
 }
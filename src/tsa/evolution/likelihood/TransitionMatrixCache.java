@@ -0,0 +1,182 @@
+package tsa.evolution.likelihood;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import beast.base.core.Description;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+
+@Description("Bounded cache of transition probability matrices keyed by branch length (in expected number "
+		+ "of substitutions) for a single state of the substitution model. The cache is split in "
+		+ "stripes with their own lock, so that worker threads rarely contend. Optionally, branch "
+		+ "lengths are rounded to a multiple of a tolerance to increase the hit rate.")
+public class TransitionMatrixCache {
+	/** number of slots inspected before an entry is overwritten **/
+	final static int PROBES = 4;
+	final static long EMPTY = Long.MIN_VALUE;
+
+	final int matrixSize;
+	final double tolerance;
+	final Stripe [] stripes;
+	final int stripeMask;
+	/** model state the cache is valid for **/
+	long version = Long.MIN_VALUE;
+
+	/** per thread buffer for calculating a matrix before it is copied into the cache **/
+	final ThreadLocal<double []> scratch;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	static private class Stripe {
+		final long [] keys;
+		final double [] matrices;
+		final int mask;
+
+		Stripe(int capacity, int matrixSize) {
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			matrices = new double[capacity * matrixSize];
+			mask = capacity - 1;
+		}
+	}
+
+	/**
+	 * @param stateCount number of states of substitution model
+	 * @param capacity maximum number of matrices held
+	 * @param stripeCount number of independently locked parts, rounded up to a power of 2
+	 * @param tolerance if larger than zero, branch lengths are rounded to a multiple of tolerance
+	 */
+	public TransitionMatrixCache(int stateCount, int capacity, int stripeCount, double tolerance) {
+		matrixSize = stateCount * stateCount;
+		this.tolerance = tolerance;
+		int powerOf2 = 1;
+		while (powerOf2 < stripeCount) {
+			powerOf2 <<= 1;
+		}
+		stripeCount = powerOf2;
+		int stripeCapacity = Integer.highestOneBit(Math.max(PROBES, capacity / stripeCount));
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(stripeCapacity, matrixSize);
+		}
+		stripeMask = stripeCount - 1;
+		scratch = ThreadLocal.withInitial(() -> new double[matrixSize]);
+	}
+
+	/**
+	 * Empty the cache if version differs from that of the last call. Must not be called while
+	 * other threads use the cache.
+	 * @param version identifies state of the substitution model, or Long.MIN_VALUE if unknown,
+	 * in which case the cache is always emptied
+	 */
+	public void setVersion(long version) {
+		if (version == this.version && version != Long.MIN_VALUE) {
+			return;
+		}
+		this.version = version;
+		for (Stripe stripe : stripes) {
+			Arrays.fill(stripe.keys, EMPTY);
+		}
+	}
+
+	/**
+	 * Store transition probabilities for a branch of given length (as substitutions) in matrix at offset,
+	 * calculating them with substitutionModel if they are not cached yet.
+	 */
+	public void getTransitionProbabilities(SubstitutionModel substitutionModel, double distance, double [] matrix, int offset) {
+		distance = round(distance);
+		if (get(distance, matrix, offset)) {
+			return;
+		}
+		// calculate outside the lock, so other threads can use the stripe meanwhile
+		double [] result = scratch.get();
+		substitutionModel.getTransitionProbabilities(null, distance, 0.0, 1.0, result);
+		System.arraycopy(result, 0, matrix, offset, matrixSize);
+		put(distance, result, 0);
+	}
+
+	/** returns distance rounded to a multiple of the tolerance, if any, as used for keys of the cache **/
+	public double round(double distance) {
+		return tolerance > 0 ? Math.round(distance / tolerance) * tolerance : distance;
+	}
+
+	/**
+	 * Copy matrix for given distance into matrix at offset if it is in the cache, counting hit or miss.
+	 * Distance should be rounded already.
+	 * @return whether the matrix was found
+	 */
+	public boolean get(double distance, double [] matrix, int offset) {
+		long key = key(distance);
+		int h = hash(key);
+		Stripe stripe = stripes[(h >>> 16) & stripeMask];
+		synchronized (stripe) {
+			for (int i = 0; i < PROBES; i++) {
+				int slot = (h + i) & stripe.mask;
+				if (stripe.keys[slot] == key) {
+					System.arraycopy(stripe.matrices, slot * matrixSize, matrix, offset, matrixSize);
+					hits.increment();
+					return true;
+				}
+			}
+		}
+		misses.increment();
+		return false;
+	}
+
+	/** add matrix, stored in matrices at offset, for given (rounded) distance to the cache **/
+	public void put(double distance, double [] matrices, int offset) {
+		long key = key(distance);
+		int h = hash(key);
+		Stripe stripe = stripes[(h >>> 16) & stripeMask];
+		synchronized (stripe) {
+			int target = h & stripe.mask;
+			for (int i = 0; i < PROBES; i++) {
+				int slot = (h + i) & stripe.mask;
+				if (stripe.keys[slot] == EMPTY || stripe.keys[slot] == key) {
+					target = slot;
+					break;
+				}
+			}
+			stripe.keys[target] = key;
+			System.arraycopy(matrices, offset, stripe.matrices, target * matrixSize, matrixSize);
+		}
+	}
+
+	private long key(double distance) {
+		if (tolerance > 0) {
+			return Math.round(distance / tolerance);
+		}
+		long key = Double.doubleToLongBits(distance);
+		if (key == EMPTY) {
+			// distance is -0.0
+			key = 0;
+		}
+		return key;
+	}
+
+	private static int hash(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public void resetCounters() {
+		hits.reset();
+		misses.reset();
+	}
+
+	@Override
+	public String toString() {
+		long h = getHitCount(), m = getMissCount();
+		return "transition matrix cache: " + h + " hits, " + m + " misses" +
+				(h + m > 0 ? String.format(" (%.1f%% hit rate)", 100.0 * h / (h + m)) : "");
+	}
+}
@@ -2,9 +2,10 @@ package tsa.evolution.likelihood;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -14,159 +15,405 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Log;
 import beast.base.inference.State;
+import beast.base.inference.util.InputUtil;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.likelihood.TreeLikelihood;
-import beast.base.evolution.tree.Node;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Tree;
-import beast.base.parser.NexusParser;
+import correlatedtrait.evolution.substitutionmodel.CorrelatedSubstitutionModel;
+import tsa.ResultStore;
+import tsa.evolution.tree.ArrayTreeSet;
+import tsa.evolution.tree.BinaryTreeSet;
+import tsa.evolution.tree.CompactTreeSet;
+import tsa.evolution.tree.NexusTreeReader;
+import tsa.evolution.tree.SubtreeTable;
+import tsa.evolution.tree.TreeSetIngest;
 
 @Description("Likelihood for a set of trees")
 public class TreeSetLikelihood extends Distribution {
-	final public Input<File> treeSetFileInput = new Input<>("treeSetFile", "file containing a tree set in Nexus format", Validate.REQUIRED);
+	final public Input<File> treeSetFileInput = new Input<>("treeSetFile", "file containing a tree set in Nexus format, or in binary format as created by BinaryTreeSetConverter", Validate.REQUIRED);
 	final public Input<GenericTreeLikelihood> treeLikelihoodInput = new Input<>("treeLikelihood", "tree likelihood used to evaluate each of the trees", Validate.REQUIRED);
 	final public Input<Integer> burninInput = new Input<>("burnin", "percentage of the log file to disregard as burn-in (default 10)" , 10);
+	final public Input<Boolean> shareSubtreesInput = new Input<>("shareSubtrees", "calculate partials of subtrees that occur in several trees "
+			+ "with identical topology and branch lengths only once, if this saves enough work and memory permits (default true)", true);
+	final public Input<Integer> matrixCacheSizeInput = new Input<>("matrixCacheSize", "maximum number of transition probability matrices "
+			+ "cached per state of the substitution model, shared by all threads. Set to 0 to disable the cache (default 65536)", 65536);
+	final public Input<Double> matrixCacheToleranceInput = new Input<>("matrixCacheTolerance", "if positive, branch lengths (in substitutions) "
+			+ "are rounded to a multiple of this value before looking them up in the transition probability matrix cache. "
+			+ "This increases the hit rate at the cost of a small approximation error (default 0)", 0.0);
+	final public Input<Boolean> useFloatInput = new Input<>("float", "store node heights of trees read from Nexus file in single precision, "
+			+ "which halves the memory needed for heights (default false)", false);
 	
-	List<Tree> trees;
+	/** trees stored as primitive arrays, either in memory or memory mapped from a binary file **/
+	CompactTreeSet treeSet;
+	LoadedTrees loadedTrees;
+	/** number of trees in treeSet to skip as burn-in **/
+	int firstTree;
+	/** maps taxa in treeSet to leaf numbers of the tree of the tree likelihood, null if they match **/
+	int [] leafNr;
 	GenericTreeLikelihood treelikelihood;
+	/** evaluates trees directly from treeSet, null if treelikelihood cannot be emulated **/
+	CompactTreeLikelihood compactLikelihood;
+	/** transition probability matrices for the current state of the substitution model, null if not used **/
+	TransitionMatrixCache matrixCache;
+	/** distinct subtrees in the tree set and their partials, null if not shared **/
+	SubtreeTable subtreeTable;
+	CompactTreeLikelihood.SubtreePartials subtreePartials;
+	/** log likelihood of every tree after burn-in, as of the last calculation, and as of the last store **/
+	double [] treeLogP;
+	double [] storedTreeLogP;
+	/** number of calculations, and time spent in them in nanoseconds **/
+	long evaluationCount;
+	long evaluationTime;
 	
 	
 	public TreeSetLikelihood() {
 	}
 	
+	/**
+	 * Use trees that are already loaded, instead of reading treeSetFile again in initAndValidate().
+	 * Only used if they match the file, burn-in and taxa of this likelihood.
+	 */
+	public void setTrees(LoadedTrees trees) {
+		loadedTrees = trees;
+	}
+	
+	/** trees as used by this likelihood, which can be shared with other likelihoods with the same taxa **/
+	public LoadedTrees getTrees() {
+		return loadedTrees;
+	}
+	
 	@Override
 	public void initAndValidate() {
-		// get trees from file
-		NexusParser parser = new NexusParser();
-		try {
-			parser.parseFile(treeSetFileInput.get());
-		} catch (IOException e) {
-			throw new RuntimeException(e.getMessage());
-		}
-		trees = parser.trees;
-		if (trees == null || trees.size() == 0) {
-			throw new IllegalArgumentException("Could not find any trees in nexus file " + treeSetFileInput.get().getName());			
-		}
-		
-		// remove burn-in portion of trees
-		int burnin = trees.size() * burninInput.get() / 100;
-		if (burnin < 0) {
-			burnin = 0;
-		}
-		if (burnin > trees.size()) {
-			throw new IllegalArgumentException("burnin percentage should not exceed 100%");
-		}
-		Log.warning.println("Removing " + burnin + " trees as burnin");
-		for (int i = 0; i < burnin; i++) {
-			trees.remove(0);
-		}
-		
-		// sanity check: make sure all taxa in tree are in tree set
 		treelikelihood = treeLikelihoodInput.get();
 		Tree tree0 = (Tree) treelikelihood.treeInput.get();
 		String [] names = tree0.getTaxaNames();
-		String [] setNames = trees.get(0).getTaxaNames();
+		if (loadedTrees == null || !loadedTrees.matches(treeSetFileInput.get(), burninInput.get(), useFloatInput.get(), names)) {
+			loadedTrees = LoadedTrees.load(treeSetFileInput.get(), burninInput.get(), useFloatInput.get(), names);
+		}
+		treeSet = loadedTrees.treeSet;
+		firstTree = loadedTrees.firstTree;
+		leafNr = loadedTrees.leafNr;
+		treeLogP = new double[getTreeCount()];
+		storedTreeLogP = new double[getTreeCount()];
 		
-		for (String id : names) {
-			if (indexOf(setNames, id) == -1) {
-				throw new IllegalArgumentException("Cannot find taxon " + id + " from tree in list of taxa names "
-						+ "in tree set. This may be due to a spelling error, or different case (matching is case sensitive).");
+		compactLikelihood = CompactTreeLikelihood.newInstance(treelikelihood, treeSet);
+		if (compactLikelihood == null) {
+			Log.warning.println("Tree likelihood " + treelikelihood.getID() + " uses features not supported by CompactTreeLikelihood, "
+					+ "so trees will be copied into the tree of the tree likelihood for evaluation.");
+		} else {
+			initMatrixCache();
+			compactLikelihood.setMatrixCache(matrixCache);
+			if (shareSubtreesInput.get()) {
+				initSubtreeSharing();
 			}
 		}
+	}
+	
+	@Description("Trees of a tree set file with burn-in removed, and tips numbered as the taxa of a tree. "
+			+ "This does not change after loading, so likelihoods for the same taxa can share it, "
+			+ "instead of each reading and storing the tree set.")
+	public static class LoadedTrees {
+		final File file;
+		final int burnin;
+		final boolean useFloat;
+		final String [] names;
+		/** trees stored as primitive arrays, either in memory or memory mapped from a binary file **/
+		final CompactTreeSet treeSet;
+		/** number of trees in treeSet to skip as burn-in, or before the slice **/
+		final int firstTree;
+		/** number of trees used from firstTree onwards **/
+		final int treeCount;
+		/** maps taxa in treeSet to leaf numbers of the tree of the tree likelihood, null if they match **/
+		final int [] leafNr;
+		/** distinct subtrees, created on first request, null if not created or not worth sharing **/
+		private SubtreeTable subtreeTable;
+		/** largest number of subtrees for which building subtreeTable was abandoned **/
+		private int abandonedSubtreeCount = -1;
+		/** key for the contents of file, created on first request **/
+		private String fileKey;
 
-		// remove taxa from tree-set that are not in tree
-		Set<String> tabu = new HashSet<>();
-		for (String name : setNames) {
-			if (indexOf(names, name) == -1) {
-				tabu.add(name);
-			}
+		private LoadedTrees(File file, int burnin, boolean useFloat, String [] names, CompactTreeSet treeSet, int firstTree,
+				int treeCount, int [] leafNr) {
+			this.file = file;
+			this.burnin = burnin;
+			this.useFloat = useFloat;
+			this.names = names.clone();
+			this.treeSet = treeSet;
+			this.firstTree = firstTree;
+			this.treeCount = treeCount;
+			this.leafNr = leafNr;
 		}
-		if (tabu.size() > 0) {
-			Log.warning.println("Removing the following taxa from the tree set (because there is no data for them): " + tabu.toString());
-			Log.warning.println(names.length + " taxa left.");
-			List<Tree> filteredTrees = new ArrayList<>();
-			for (Tree tree : trees) {
-				int [] internalNodeNr = new int[1];
-				internalNodeNr[0] = names.length;
-				Tree newTree = new Tree(removeTaxa(tabu, tree.getRoot(), internalNodeNr));
-				filteredTrees.add(newTree);
+
+		/**
+		 * key for the contents of the tree set file, see ResultStore.fileKey(). It is calculated once,
+		 * since everything that shares the trees would otherwise read the whole file again.
+		 */
+		public synchronized String getFileKey() throws IOException {
+			if (fileKey == null) {
+				fileKey = ResultStore.fileKey(file);
 			}
-			trees = filteredTrees;
+			return fileKey;
 		}
-		
 
-		// relabel tips in tree set to match those in tree
-		for (Tree tree : trees) {
-			relabel(names, tree.getRoot());
+		/**
+		 * read trees from a Nexus or binary tree set file
+		 * @param burnin percentage of trees to skip
+		 * @param names taxa of the tree of the tree likelihood, which determine tip numbers; other taxa are removed
+		 */
+		public static LoadedTrees load(File file, int burnin, boolean useFloat, String [] names) {
+			return load(file, burnin, useFloat, names, 0, 1);
 		}
-	
-	}
-	
-	protected Node removeTaxa(Set<String> taxaToInclude, Node node, int [] internalNodeNr) {
-		if (node.isLeaf()) {
-			if (taxaToInclude.contains(node.getID())) {
-				return null;
+
+		/**
+		 * read a slice of the trees of a tree set file, so that processes that evaluate different slices
+		 * only keep their own slice. After burn-in, the trees are divided into sliceCount consecutive slices
+		 * of (nearly) equal size. Binary tree sets are memory mapped, so only trees in the slice are touched.
+		 * @param slice which slice to keep, from 0 to sliceCount - 1
+		 */
+		public static LoadedTrees load(File file, int burnin, boolean useFloat, String [] names, int slice, int sliceCount) {
+			if (slice < 0 || slice >= sliceCount) {
+				throw new IllegalArgumentException("slice should be from 0 to " + (sliceCount - 1) + ", not " + slice);
+			}
+			String [] setNames;
+			BinaryTreeSet binaryTrees = null;
+			int fileTreeCount;
+
+			if (BinaryTreeSet.isBinaryTreeSet(file)) {
+				// get trees from memory mapped file
+				try {
+					binaryTrees = new BinaryTreeSet(file);
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage());
+				}
+				if (binaryTrees.getTreeCount() == 0) {
+					throw new IllegalArgumentException("Could not find any trees in binary tree set " + file.getName());
+				}
+				fileTreeCount = binaryTrees.getTreeCount();
+				setNames = binaryTrees.getTaxaNames();
 			} else {
-				return node;
+				// count trees without parsing them, so only trees after burn-in in the slice are parsed later
+				try (NexusTreeReader reader = new NexusTreeReader(file)) {
+					setNames = reader.getTaxaNames();
+					fileTreeCount = reader.countTrees();
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage());
+				}
+				if (fileTreeCount == 0) {
+					throw new IllegalArgumentException("Could not find any trees in nexus file " + file.getName());			
+				}
 			}
-		} else {
-			Node left_ = node.getLeft(); 
-			Node right_ = node.getRight(); 
-			left_ = removeTaxa(taxaToInclude, left_, internalNodeNr);
-			right_ = removeTaxa(taxaToInclude, right_, internalNodeNr);
-			if (left_ == null && right_ == null) {
-				return null;
+
+			// skip burn-in portion of trees, and trees outside the slice
+			int firstTree = calcBurnin(fileTreeCount, burnin);
+			int n = fileTreeCount - firstTree;
+			int from = (int) ((long) n * slice / sliceCount);
+			int to = (int) ((long) n * (slice + 1) / sliceCount);
+			firstTree += from;
+			int treeCount = to - from;
+			
+			// sanity check: make sure all taxa in tree are in tree set
+			Map<String, Integer> taxonIndex = TreeSetIngest.index(names);
+			Map<String, Integer> setIndex = TreeSetIngest.index(setNames);
+			for (String id : names) {
+				if (!setIndex.containsKey(id)) {
+					throw new IllegalArgumentException("Cannot find taxon " + id + " from tree in list of taxa names "
+							+ "in tree set. This may be due to a spelling error, or different case (matching is case sensitive).");
+				}
 			}
-			if (left_ == null) {
-				return right_;
+	
+			// remove taxa from tree-set that are not in tree
+			Set<String> tabu = new HashSet<>();
+			for (String name : setNames) {
+				if (!taxonIndex.containsKey(name)) {
+					tabu.add(name);
+				}
 			}
-			if (right_ == null) {
-				return left_;
+			
+			if (binaryTrees != null && tabu.size() == 0) {
+				// trees are read straight from the mapped file, only leaf numbers need to match those in tree
+				int [] leafNr = new int[setNames.length];
+				for (int i = 0; i < setNames.length; i++) {
+					leafNr[i] = taxonIndex.get(setNames[i]);
+				}
+				return new LoadedTrees(file, burnin, useFloat, names, binaryTrees, firstTree, treeCount, leafNr);
 			}
-			node.removeAllChildren(false);
-			node.addChild(left_);
-			node.addChild(right_);
-			node.setNr(internalNodeNr[0]);
-			internalNodeNr[0]++;
-			return node;
+
+			if (tabu.size() > 0) {
+				Log.warning.println("Removing the following taxa from the tree set (because there is no data for them): " + tabu.toString());
+				Log.warning.println(names.length + " taxa left.");
+			}
+	
+			// store trees in arrays, numbering tips as in tree, using the whole thread budget
+			ArrayTreeSet arrayTrees;
+			int threadCount = LikelihoodExecutor.getBudget();
+			if (binaryTrees != null) {
+				arrayTrees = TreeSetIngest.copy(binaryTrees, firstTree, treeCount, names, useFloat, threadCount);
+			} else {
+				try (NexusTreeReader reader = new NexusTreeReader(file)) {
+					arrayTrees = TreeSetIngest.readNexus(reader, firstTree, treeCount, names, useFloat, threadCount);
+				} catch (IOException e) {
+					throw new RuntimeException("Could not read trees from " + file.getName() + ": " + e.getMessage());
+				}
+			}
+			return new LoadedTrees(file, burnin, useFloat, names, arrayTrees, 0, treeCount, null);
 		}
-	}
 
+		/** whether these are (a slice of) the trees load() would return for the same arguments **/
+		public boolean matches(File file, int burnin, boolean useFloat, String [] names) {
+			return this.file.equals(file) && this.burnin == burnin && this.useFloat == useFloat && Arrays.equals(this.names, names);
+		}
+
+		/** number of trees after removing burn-in, or in the slice **/
+		public int getTreeCount() {
+			return treeCount;
+		}
+
+		/** trees stored as primitive arrays, in which the trees used start at getFirstTree() **/
+		public CompactTreeSet getTreeSet() {
+			return treeSet;
+		}
+
+		public int getFirstTree() {
+			return firstTree;
+		}
 
-	/** change numbers of tip nodes to match those in names **/
-	protected void relabel(String [] names, Node node) {
-		if (node.isLeaf()) {
-			if (node.getID() != null) {
-				int nr = indexOf(names, node.getID());
-				node.setNr(nr);
+		/** maps taxa in getTreeSet() to leaf numbers of the tree of the tree likelihood, null if they match **/
+		public int [] getLeafNr() {
+			return leafNr;
+		}
+
+		/**
+		 * distinct subtrees of the trees after burn-in, shared by all users of these trees, or null if there
+		 * are more than maxSubtreeCount. Only tables that were built completely are kept.
+		 */
+		public synchronized SubtreeTable getSubtreeTable(int maxSubtreeCount) {
+			if (subtreeTable == null && maxSubtreeCount > abandonedSubtreeCount) {
+				subtreeTable = SubtreeTable.build(treeSet, firstTree, getTreeCount(), maxSubtreeCount);
+				if (subtreeTable == null) {
+					abandonedSubtreeCount = maxSubtreeCount;
+				}
 			}
-		} else {
-			for (Node child : node.getChildren()) {
-				relabel(names, child);
+			if (subtreeTable == null || subtreeTable.getSubtreeCount() > maxSubtreeCount) {
+				return null;
 			}
+			return subtreeTable;
+		}
+	}
+	
+	/** set up matrixCache, limiting its memory use to 64MB, with enough stripes for the threads that evaluate trees **/
+	protected void initMatrixCache() {
+		int stateCount = compactLikelihood.getStateCount();
+		int capacity = (int) Math.min(matrixCacheSizeInput.get(), (64L << 20) / (8L * stateCount * stateCount));
+		if (capacity > 0) {
+			matrixCache = new TransitionMatrixCache(stateCount, capacity, 4 * getThreadCount(), matrixCacheToleranceInput.get());
 		}
 	}
 
-	protected int indexOf(String[] names, String id) {
-		for (int i = 0; i < names.length; i++) {
-			if (names[i].equals(id)) {
-				return i;
+	/** number of threads evaluating trees, which may be called before initialisation is complete **/
+	protected int getThreadCount() {
+		return 1;
+	}
+	
+	/** empty matrixCache if the substitution model changed since the last call **/
+	protected void updateMatrixCache() {
+		if (matrixCache != null) {
+			SubstitutionModel substitutionModel = compactLikelihood.getSubstitutionModel();
+			if (substitutionModel instanceof CorrelatedSubstitutionModel) {
+				matrixCache.setVersion(((CorrelatedSubstitutionModel) substitutionModel).getSnapshot().getVersion());
+			} else {
+				matrixCache.setVersion(Long.MIN_VALUE);
 			}
- 		}
-		return -1;
-		
+		}
 	}
-
+	
+	public TransitionMatrixCache getMatrixCache() {
+		return matrixCache;
+	}
+	
+	/**
+	 * find subtrees shared between trees, and set up subtreeTable if that pays off: there should be at most
+	 * half as many distinct subtrees as internal nodes, and their partials should fit in a quarter of the heap
+	 **/
+	protected void initSubtreeSharing() {
+		long internalNodes = (long) getTreeCount() * (treeSet.getLeafNodeCount() - 1);
+		long bytesPerSubtree = (compactLikelihood.getPartialsSize() + compactLikelihood.getPatternCount()) * 8;
+		long maxSubtreeCount = Math.min(internalNodes / 2, Runtime.getRuntime().maxMemory() / 4 / bytesPerSubtree);
+		SubtreeTable table = loadedTrees.getSubtreeTable((int) Math.min(Integer.MAX_VALUE, maxSubtreeCount));
+		if (table == null) {
+			Log.warning.println("Not sharing subtrees: too few subtrees are shared between trees, or their partials would not fit in memory");
+			return;
+		}
+		Log.warning.println("Tree set contains " + table.getSubtreeCount() + " distinct subtrees in " + internalNodes + " internal nodes");
+		subtreeTable = table;
+		subtreePartials = new CompactTreeLikelihood.SubtreePartials(table, compactLikelihood);
+	}
+	
+	/** whether treeLogP can be calculated from shared subtree partials for the current state **/
+	protected boolean useSharedSubtrees() {
+		return subtreeTable != null && compactLikelihood.isApplicable();
+	}
+	
+	/** number of trees to skip as burn-in **/
+	protected static int calcBurnin(int treeCount, int percentage) {
+		int burnin = treeCount * percentage / 100;
+		if (burnin < 0) {
+			burnin = 0;
+		}
+		if (burnin > treeCount) {
+			throw new IllegalArgumentException("burnin percentage should not exceed 100%");
+		}
+		Log.warning.println("Removing " + burnin + " trees as burnin");
+		return burnin;
+	}
+	
+	/** number of trees in the tree set after removing burn-in **/
+	protected int getTreeCount() {
+		return loadedTrees.getTreeCount();
+	}
+	
+	/** i-th tree in the tree set after removing burn-in, with tips labelled as in tree **/
+	protected Tree getTree(int i) {
+		return treeSet.getTree(firstTree + i, leafNr);
+	}
+	
+	/**
+	 * log likelihood of the i-th tree in the tree set after removing burn-in. Uses compact if
+	 * possible, otherwise the tree is copied into the tree of likelihood which then does the work.
+	 */
+	protected double calcLogP(GenericTreeLikelihood likelihood, CompactTreeLikelihood compact, int i) {
+		if (compact != null && compact.isApplicable()) {
+			return compact.calculateLogP(firstTree + i);
+		}
+		assignTree((Tree) likelihood.treeInput.get(), i);
+		return likelihood.calculateLogP();
+	}
+	
+	/** make tree equal to i-th tree in the tree set, re-using its Node objects **/
+	protected void assignTree(Tree tree, int i) {
+		treeSet.assignTo(tree, firstTree + i, leafNr);
+	}
+	
 	@Override
 	public double calculateLogP() {
+		long start = System.nanoTime();
         logP = 0;
-        int n = trees.size();
-        double [] treeLogP  = new double[n];
-    	Tree tree0 = (Tree) treelikelihood.treeInput.get();
-    	int i = 0;
-        for (Tree tree : trees) {
-        	tree0.assignFrom(tree);
-        	treeLogP[i++] += treelikelihood.calculateLogP();
-        }
+        int n = getTreeCount();
+    	int i;
+    	updateMatrixCache();
+    	if (useSharedSubtrees()) {
+    		compactLikelihood.prepare();
+    		for (int k = subtreeTable.getLeafNodeCount(); k < subtreeTable.getLeafNodeCount() + subtreeTable.getSubtreeCount(); k++) {
+    			compactLikelihood.calculateSubtree(subtreeTable, subtreePartials, k);
+    		}
+    		for (i = 0; i < n; i++) {
+    			treeLogP[i] = compactLikelihood.calculateRootLogP(subtreePartials, subtreeTable.getRoot(i));
+    		}
+    	} else {
+	        for (i = 0; i < n; i++) {
+	        	treeLogP[i] = calcLogP(treelikelihood, compactLikelihood, i);
+	        }
+    	}
         
         // take average over P from treeLogP
         double max = treeLogP[0];
@@ -180,14 +427,63 @@ public class TreeSetLikelihood extends Distribution {
         sum /= n;
         logP = max + Math.log(sum);
         //System.err.println(sum + " " + logP);
+        countEvaluation(start);
         return logP;
 	}
 
+	protected void countEvaluation(long start) {
+		evaluationCount++;
+		evaluationTime += System.nanoTime() - start;
+	}
+
+	/** log likelihood of every tree after burn-in as of the last calculation, or null if not available. Do not change. **/
+	public double [] getTreeLogP() {
+		return treeLogP;
+	}
+
+	public long getEvaluationCount() {
+		return evaluationCount;
+	}
+
+	/** wall time spent in calculateLogP(), in nanoseconds **/
+	public long getEvaluationTime() {
+		return evaluationTime;
+	}
+
+	/** time each thread spent on calculations, in nanoseconds **/
+	public long [] getBusyTimes() {
+		return new long[] {evaluationTime};
+	}
+
 	
+	/**
+	 * Trees are fixed, so the likelihood only changes when the tree likelihood's model does, or any other
+	 * input. Moves that only touch, say, hyper parameters of priors leave the cached logP as it is.
+	 */
 	@Override
 	protected boolean requiresRecalculation() {
-		// treelikelihood.requiresRecalculation();
-		return true;
+		for (Input<?> input : listInputs()) {
+			if (InputUtil.isDirty(input)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected void store() {
+		if (treeLogP != null) {
+			System.arraycopy(treeLogP, 0, storedTreeLogP, 0, treeLogP.length);
+		}
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		double [] tmp = treeLogP;
+		treeLogP = storedTreeLogP;
+		storedTreeLogP = tmp;
+		super.restore();
 	}
 	
 	@Override
@@ -0,0 +1,205 @@
+package tsa.evolution.likelihood;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+
+@Description("Reports how a TreeSetLikelihood spends its time and which trees it depends on: mean wall time per "
+		+ "calculation and fraction of that time each thread was busy since the last log line, the tree-weight ESS "
+		+ "(effective number of trees contributing to the mean likelihood), the trees with highest likelihood, "
+		+ "and the hit rate of the transition matrix cache. Optionally, the log likelihoods of all trees "
+		+ "are written to a binary file at every log line.")
+public class TreeSetLikelihoodLogger extends BEASTObject implements Loggable {
+	final public Input<TreeSetLikelihood> likelihoodInput = new Input<>("likelihood", "tree set likelihood to report on", Validate.REQUIRED);
+	final public Input<Integer> dominantInput = new Input<>("dominant", "number of trees with highest likelihood to report (default 3)", 3);
+	final public Input<File> dumpFileInput = new Input<>("dumpFile", "if specified, tree log likelihoods are written to this "
+			+ "file at every log line. The file starts with the int " + MAGIC + " and the number of trees as int, followed "
+			+ "by one record per log line with the sample number as long and the log likelihood of each tree as float, "
+			+ "all big-endian as written by DataOutputStream.");
+
+	final static int MAGIC = 0x54534C50;
+
+	TreeSetLikelihood likelihood;
+	DataOutputStream dump;
+
+	/** counters at the previous log line, so every line reports on the samples in between **/
+	long evaluationCount;
+	long evaluationTime;
+	long [] busyTimes;
+	long hitCount, missCount;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		if (dominantInput.get() < 0) {
+			throw new IllegalArgumentException("dominant should not be negative");
+		}
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = getPrefix();
+		busyTimes = likelihood.getBusyTimes();
+		evaluationCount = likelihood.getEvaluationCount();
+		evaluationTime = likelihood.getEvaluationTime();
+		TransitionMatrixCache cache = likelihood.getMatrixCache();
+		if (cache != null) {
+			hitCount = cache.getHitCount();
+			missCount = cache.getMissCount();
+		}
+
+		out.print(id + ".msPerCalculation\t");
+		for (int i = 0; i < busyTimes.length; i++) {
+			out.print(id + ".busy" + i + "\t");
+		}
+		out.print(id + ".treeESS\t");
+		for (int i = 0; i < dominantInput.get(); i++) {
+			out.print(id + ".dominant" + i + "\t");
+		}
+		out.print(id + ".dominantWeight\t");
+		out.print(id + ".cacheHitRate\t");
+
+		if (dumpFileInput.get() != null) {
+			try {
+				dump = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dumpFileInput.get())));
+				dump.writeInt(MAGIC);
+				dump.writeInt(likelihood.getTreeCount());
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write to " + dumpFileInput.get().getPath() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private String getPrefix() {
+		return getID() != null ? getID() : likelihood.getID();
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		// timing since the previous log line
+		long count = likelihood.getEvaluationCount() - evaluationCount;
+		long time = likelihood.getEvaluationTime() - evaluationTime;
+		evaluationCount += count;
+		evaluationTime += time;
+		out.print((count > 0 ? time / 1e6 / count : Double.NaN) + "\t");
+		long [] busy = likelihood.getBusyTimes();
+		for (int i = 0; i < busyTimes.length; i++) {
+			out.print((time > 0 ? (double) (busy[i] - busyTimes[i]) / time : Double.NaN) + "\t");
+			busyTimes[i] = busy[i];
+		}
+
+		// weights of trees in the mean likelihood
+		double [] treeLogP = likelihood.getTreeLogP();
+		int [] dominant = getDominantTrees(treeLogP, dominantInput.get());
+		double ess = Double.NaN, dominantWeight = Double.NaN;
+		if (treeLogP != null && dominant.length > 0 && treeLogP[dominant[0]] > Double.NEGATIVE_INFINITY) {
+			double max = treeLogP[dominant[0]];
+			double sum = 0, sum2 = 0;
+			for (double d : treeLogP) {
+				double w = Math.exp(d - max);
+				sum += w;
+				sum2 += w * w;
+			}
+			ess = sum * sum / sum2;
+			dominantWeight = 0;
+			for (int i : dominant) {
+				dominantWeight += Math.exp(treeLogP[i] - max);
+			}
+			dominantWeight /= sum;
+		}
+		out.print(ess + "\t");
+		for (int i = 0; i < dominantInput.get(); i++) {
+			out.print((i < dominant.length ? dominant[i] : -1) + "\t");
+		}
+		out.print(dominantWeight + "\t");
+
+		TransitionMatrixCache cache = likelihood.getMatrixCache();
+		double hitRate = Double.NaN;
+		if (cache != null) {
+			long hits = cache.getHitCount() - hitCount;
+			long misses = cache.getMissCount() - missCount;
+			hitCount += hits;
+			missCount += misses;
+			if (hits + misses > 0) {
+				hitRate = (double) hits / (hits + misses);
+			}
+		}
+		out.print(hitRate + "\t");
+
+		if (dump != null) {
+			writeDump(sample, treeLogP);
+		}
+	}
+
+	/** indices of at most k trees with highest log likelihood, highest first **/
+	static int [] getDominantTrees(double [] treeLogP, int k) {
+		if (treeLogP == null) {
+			return new int[0];
+		}
+		k = Math.min(k, treeLogP.length);
+		int [] dominant = new int[k];
+		int found = 0;
+		for (int i = 0; i < treeLogP.length; i++) {
+			if (Double.isNaN(treeLogP[i])) {
+				continue;
+			}
+			// insertion into the sorted top k
+			int j = found < k ? found++ : k;
+			while (j > 0 && treeLogP[dominant[j - 1]] < treeLogP[i]) {
+				if (j < k) {
+					dominant[j] = dominant[j - 1];
+				}
+				j--;
+			}
+			if (j < k) {
+				dominant[j] = i;
+			}
+		}
+		if (found < k) {
+			int [] tmp = new int[found];
+			System.arraycopy(dominant, 0, tmp, 0, found);
+			dominant = tmp;
+		}
+		return dominant;
+	}
+
+	private void writeDump(long sample, double [] treeLogP) {
+		try {
+			dump.writeLong(sample);
+			int n = likelihood.getTreeCount();
+			for (int i = 0; i < n; i++) {
+				dump.writeFloat(treeLogP != null && i < treeLogP.length ? (float) treeLogP[i] : Float.NaN);
+			}
+		} catch (IOException e) {
+			Log.warning("Could not write to " + dumpFileInput.get().getPath() + ": " + e.getMessage() + ". Stopped writing tree log likelihoods.");
+			closeDump();
+		}
+	}
+
+	private void closeDump() {
+		try {
+			dump.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+		dump = null;
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		if (dump != null) {
+			closeDump();
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+package tsa.evolution.likelihood;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import beast.base.core.Description;
+
+@Description("Persistent set of worker threads that process a range of indices in parallel. "
+		+ "The range is split evenly over the workers, each of which takes chunks from its own part "
+		+ "that get smaller as the part runs out, and workers that run out of work steal half of "
+		+ "what is left of another worker's part. The calling thread acts as worker 0, and workers "
+		+ "synchronise through a barrier, so running a job does not allocate.")
+public class WorkerCrew {
+
+	/** work to be done for indices from (inclusive) to (exclusive) by worker **/
+	public interface Job {
+		void run(int worker, int from, int to) throws Exception;
+	}
+
+	final int workerCount;
+	/** remaining range of each worker, packed as (start << 32) | end **/
+	final AtomicLong [] ranges;
+	final CyclicBarrier startBarrier, endBarrier;
+	final Thread [] threads;
+	/** time each worker spent working on jobs, in nanoseconds **/
+	final long [] busyTime;
+	volatile Job job;
+	volatile boolean shutdown;
+	volatile Throwable failure;
+
+	public WorkerCrew(String name, int workerCount) {
+		this.workerCount = Math.max(1, workerCount);
+		ranges = new AtomicLong[this.workerCount];
+		for (int i = 0; i < this.workerCount; i++) {
+			ranges[i] = new AtomicLong();
+		}
+		startBarrier = new CyclicBarrier(this.workerCount);
+		endBarrier = new CyclicBarrier(this.workerCount);
+		busyTime = new long[this.workerCount];
+		threads = new Thread[this.workerCount - 1];
+		for (int i = 1; i < this.workerCount; i++) {
+			final int worker = i;
+			threads[i - 1] = new Thread(() -> workLoop(worker), name + "-" + i);
+			threads[i - 1].setDaemon(true);
+			threads[i - 1].start();
+		}
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	/** total time worker spent on jobs in nanoseconds, up to the end of the last run **/
+	public long getBusyTime(int worker) {
+		return busyTime[worker];
+	}
+
+	/** process indices 0 to n-1 with job, and return once all of them are done **/
+	public void run(int n, Job job) {
+		if (shutdown) {
+			throw new IllegalStateException("Worker crew has been shut down");
+		}
+		int range = n / workerCount;
+		int remainder = n % workerCount;
+		int start = 0;
+		for (int i = 0; i < workerCount; i++) {
+			int end = start + range + (i < remainder ? 1 : 0);
+			ranges[i].set(pack(start, end));
+			start = end;
+		}
+
+		this.job = job;
+		failure = null;
+		if (workerCount > 1) {
+			await(startBarrier);
+		}
+		timedWork(0);
+		if (workerCount > 1) {
+			await(endBarrier);
+		}
+		this.job = null;
+
+		if (failure != null) {
+			throw new RuntimeException("Something went wrong in worker thread: " + failure.getMessage(), failure);
+		}
+	}
+
+	/** stop worker threads; the crew cannot be used afterwards. Must not be called while a job is running **/
+	public void shutdown() {
+		if (shutdown) {
+			return;
+		}
+		shutdown = true;
+		LikelihoodExecutor.remove(this);
+		if (workerCount > 1) {
+			await(startBarrier);
+		}
+	}
+
+	private void workLoop(int worker) {
+		while (true) {
+			await(startBarrier);
+			if (shutdown) {
+				return;
+			}
+			timedWork(worker);
+			await(endBarrier);
+		}
+	}
+
+	/** work, keeping track of busy time; the end barrier makes it visible to the calling thread **/
+	private void timedWork(int worker) {
+		long start = System.nanoTime();
+		work(worker);
+		busyTime[worker] += System.nanoTime() - start;
+	}
+
+	private void work(int worker) {
+		try {
+			while (true) {
+				long chunk = claim(ranges[worker]);
+				if (chunk < 0) {
+					if (!steal(worker)) {
+						return;
+					}
+					continue;
+				}
+				job.run(worker, start(chunk), end(chunk));
+			}
+		} catch (Throwable e) {
+			failure = e;
+			// make sure other workers stop soon
+			for (AtomicLong range : ranges) {
+				range.set(pack(0, 0));
+			}
+		}
+	}
+
+	/** take chunk from the front of a range, return -1 if the range is empty **/
+	private long claim(AtomicLong range) {
+		while (true) {
+			long current = range.get();
+			int start = start(current), end = end(current);
+			if (start >= end) {
+				return -1;
+			}
+			// guided chunking: large chunks while there is plenty of work, single items near the end
+			int size = Math.max(1, (end - start) / 4);
+			if (range.compareAndSet(current, pack(start + size, end))) {
+				return pack(start, start + size);
+			}
+		}
+	}
+
+	/** move the back half of the largest remaining range of another worker into that of worker **/
+	private boolean steal(int worker) {
+		while (true) {
+			int victim = -1;
+			int largest = 0;
+			for (int i = 0; i < workerCount; i++) {
+				long current = ranges[i].get();
+				int size = end(current) - start(current);
+				if (i != worker && size > largest) {
+					largest = size;
+					victim = i;
+				}
+			}
+			if (victim < 0) {
+				return false;
+			}
+			long current = ranges[victim].get();
+			int start = start(current), end = end(current);
+			if (start >= end) {
+				continue;
+			}
+			int mid = start + (end - start) / 2;
+			if (ranges[victim].compareAndSet(current, pack(start, mid))) {
+				ranges[worker].set(pack(mid, end));
+				return true;
+			}
+		}
+	}
+
+	private void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long pack(int start, int end) {
+		return ((long) start << 32) | (end & 0xffffffffL);
+	}
+
+	private static int start(long range) {
+		return (int) (range >>> 32);
+	}
+
+	private static int end(long range) {
+		return (int) range;
+	}
+}
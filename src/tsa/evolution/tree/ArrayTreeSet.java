@@ -0,0 +1,146 @@
+package tsa.evolution.tree;
+
+import java.util.Arrays;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Tree set held in memory as a structure of primitive arrays: one int array with
+ * parents, one with children and one double (or float) array with heights, each
+ * holding the records of all trees back to back. This takes a fraction of the
+ * memory of a List<Tree>, which keeps a Node object with metadata per node.
+ */
+public class ArrayTreeSet extends CompactTreeSet {
+	int treeCount;
+	int [] parents, children;
+	double [] heights;
+	float [] floatHeights;
+	Encoder encoder;
+
+	public ArrayTreeSet(String [] taxa, boolean useFloat) {
+		this(taxa, useFloat, 16);
+	}
+
+	/**
+	 * @param taxa taxon table, determines numbering of leaves
+	 * @param useFloat store heights in single precision
+	 * @param capacity expected number of trees
+	 */
+	public ArrayTreeSet(String [] taxa, boolean useFloat, int capacity) {
+		this.taxa = taxa.clone();
+		taxonCount = taxa.length;
+		nodeCount = 2 * taxonCount - 1;
+		encoder = new Encoder(taxa);
+		capacity = Math.max(capacity, 1);
+		parents = new int[capacity * nodeCount];
+		children = new int[capacity * (nodeCount - taxonCount) * 2];
+		if (useFloat) {
+			floatHeights = new float[capacity * nodeCount];
+		} else {
+			heights = new double[capacity * nodeCount];
+		}
+	}
+
+	/** add tree, which must be binary and have the same taxa as the taxon table **/
+	public void add(Tree tree) {
+		encoder.encode(tree, treeCount);
+		ensureCapacity(treeCount + 1);
+		store(treeCount, encoder);
+		treeCount++;
+	}
+
+	/** add tree rooted at root, which must be binary and have the same taxa as the taxon table **/
+	public void add(Node root) {
+		encoder.encode(root, treeCount);
+		ensureCapacity(treeCount + 1);
+		store(treeCount, encoder);
+		treeCount++;
+	}
+
+	/**
+	 * Store tree rooted at root as tree number tree, which must be below the capacity.
+	 * Threads may fill different trees at the same time, each with an encoder of its own from newEncoder().
+	 * The trees count once setTreeCount() is called after all threads are done.
+	 */
+	void set(int tree, Node root, Encoder encoder) {
+		encoder.encode(root, tree);
+		store(tree, encoder);
+	}
+
+	Encoder newEncoder() {
+		return new Encoder(taxa);
+	}
+
+	void setTreeCount(int treeCount) {
+		ensureCapacity(treeCount);
+		this.treeCount = treeCount;
+	}
+
+	private void store(int tree, Encoder encoder) {
+		System.arraycopy(encoder.parent, 0, parents, tree * nodeCount, nodeCount);
+		System.arraycopy(encoder.children, 0, children, tree * encoder.children.length, encoder.children.length);
+		if (floatHeights != null) {
+			int offset = tree * nodeCount;
+			for (int i = 0; i < nodeCount; i++) {
+				floatHeights[offset + i] = (float) encoder.height[i];
+			}
+		} else {
+			System.arraycopy(encoder.height, 0, heights, tree * nodeCount, nodeCount);
+		}
+	}
+
+	private void ensureCapacity(int trees) {
+		int capacity = parents.length / nodeCount;
+		if (trees <= capacity) {
+			return;
+		}
+		capacity = Math.max(trees, capacity + capacity / 2);
+		parents = Arrays.copyOf(parents, capacity * nodeCount);
+		children = Arrays.copyOf(children, capacity * (nodeCount - taxonCount) * 2);
+		if (floatHeights != null) {
+			floatHeights = Arrays.copyOf(floatHeights, capacity * nodeCount);
+		} else {
+			heights = Arrays.copyOf(heights, capacity * nodeCount);
+		}
+	}
+
+	/** release memory reserved for trees that were not added **/
+	public void trimToSize() {
+		parents = Arrays.copyOf(parents, treeCount * nodeCount);
+		children = Arrays.copyOf(children, treeCount * (nodeCount - taxonCount) * 2);
+		if (floatHeights != null) {
+			floatHeights = Arrays.copyOf(floatHeights, treeCount * nodeCount);
+		} else {
+			heights = Arrays.copyOf(heights, treeCount * nodeCount);
+		}
+	}
+
+	/** remove all trees, keeping the memory reserved for them, so the set can be filled again **/
+	public void clear() {
+		treeCount = 0;
+	}
+
+	@Override
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	@Override
+	public int getParent(int tree, int node) {
+		return parents[tree * nodeCount + node];
+	}
+
+	@Override
+	public int getChild(int tree, int node, int child) {
+		return children[(tree * (nodeCount - taxonCount) + node - taxonCount) * 2 + child];
+	}
+
+	@Override
+	public double getHeight(int tree, int node) {
+		if (floatHeights != null) {
+			return floatHeights[tree * nodeCount + node];
+		}
+		return heights[tree * nodeCount + node];
+	}
+}
@@ -0,0 +1,197 @@
+package tsa.evolution.tree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Compact tree set stored in a binary file that is opened with memory mapping,
+ * so that several JVMs on the same machine share the operating system's page
+ * cache instead of each parsing and holding its own copy of the trees.
+ *
+ * File layout (big endian, as written by DataOutputStream):
+ * <pre>
+ * int    magic number 'TSB1'
+ * int    format version
+ * int    flags (bit 0 set if heights are stored as floats)
+ * int    taxon count
+ * int    node count
+ * int    tree count
+ * UTF[]  taxon names
+ * for every tree:
+ *   int[nodeCount]          parent of each node (-1 for the root)
+ *   int[2*(taxonCount-1)]   children of each internal node
+ *   double[nodeCount] (or float[nodeCount]) node heights
+ * </pre>
+ * Leaves are numbered by their position in the taxon table, internal nodes are
+ * numbered in post-order, so children always have a lower number than their
+ * parent and the root is the last node.
+ */
+public class BinaryTreeSet extends CompactTreeSet {
+	final static public int MAGIC = ('T' << 24) | ('S' << 16) | ('B' << 8) | '1';
+	final static public int VERSION = 1;
+	final static int FLAG_FLOAT = 1;
+	/** offset of tree count in header, used to patch it once all trees are written **/
+	final static int TREE_COUNT_OFFSET = 20;
+
+	int treeCount;
+	boolean useFloat;
+
+	/** record layout in bytes **/
+	int childOffset, heightOffset, recordSize;
+	/** trees are mapped in segments, since a single mapping cannot exceed 2GB **/
+	ByteBuffer [] segments;
+	int treesPerSegment;
+
+	public BinaryTreeSet(File file) throws IOException {
+		long dataOffset;
+		try (FileInputStream fis = new FileInputStream(file)) {
+			DataInputStream in = new DataInputStream(fis);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("File " + file.getName() + " is not a binary tree set");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported binary tree set version " + version + " (expected " + VERSION + ")");
+			}
+			useFloat = (in.readInt() & FLAG_FLOAT) != 0;
+			taxonCount = in.readInt();
+			nodeCount = in.readInt();
+			treeCount = in.readInt();
+			taxa = new String[taxonCount];
+			for (int i = 0; i < taxonCount; i++) {
+				taxa[i] = in.readUTF();
+			}
+			dataOffset = fis.getChannel().position();
+		}
+
+		childOffset = nodeCount * 4;
+		heightOffset = childOffset + (nodeCount - taxonCount) * 2 * 4;
+		recordSize = heightOffset + nodeCount * (useFloat ? 4 : 8);
+
+		treesPerSegment = Math.max(1, Integer.MAX_VALUE / recordSize);
+		int segmentCount = (treeCount + treesPerSegment - 1) / treesPerSegment;
+		segments = new ByteBuffer[segmentCount];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < dataOffset + (long) treeCount * recordSize) {
+				throw new IOException("Binary tree set " + file.getName() + " is truncated");
+			}
+			for (int i = 0; i < segmentCount; i++) {
+				int count = Math.min(treesPerSegment, treeCount - i * treesPerSegment);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						dataOffset + (long) i * treesPerSegment * recordSize, (long) count * recordSize);
+			}
+		}
+	}
+
+	@Override
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	@Override
+	public int getParent(int tree, int node) {
+		return segments[tree / treesPerSegment].getInt(recordStart(tree) + node * 4);
+	}
+
+	@Override
+	public int getChild(int tree, int node, int child) {
+		return segments[tree / treesPerSegment].getInt(recordStart(tree) + childOffset + ((node - taxonCount) * 2 + child) * 4);
+	}
+
+	@Override
+	public double getHeight(int tree, int node) {
+		ByteBuffer segment = segments[tree / treesPerSegment];
+		if (useFloat) {
+			return segment.getFloat(recordStart(tree) + heightOffset + node * 4);
+		}
+		return segment.getDouble(recordStart(tree) + heightOffset + node * 8);
+	}
+
+	private int recordStart(int tree) {
+		return (tree % treesPerSegment) * recordSize;
+	}
+
+	/** returns true if the file starts with the binary tree set magic number **/
+	static public boolean isBinaryTreeSet(File file) {
+		if (!file.isFile() || file.length() < 4) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write trees in binary format. Trees must be binary and contain all taxa in taxa.
+	 * Incrementally add trees with add(), and finish with close().
+	 */
+	static public class Writer implements AutoCloseable {
+		File file;
+		DataOutputStream out;
+		Encoder encoder;
+		int treeCount;
+		boolean useFloat;
+
+		public Writer(File file, String [] taxa, boolean useFloat) throws IOException {
+			this.file = file;
+			this.useFloat = useFloat;
+			encoder = new Encoder(taxa);
+
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(useFloat ? FLAG_FLOAT : 0);
+			out.writeInt(encoder.taxonCount);
+			out.writeInt(encoder.nodeCount);
+			out.writeInt(0);
+			for (String taxon : taxa) {
+				out.writeUTF(taxon);
+			}
+		}
+
+		public void add(Tree tree) throws IOException {
+			encoder.encode(tree, treeCount);
+			for (int i : encoder.parent) {
+				out.writeInt(i);
+			}
+			for (int i : encoder.children) {
+				out.writeInt(i);
+			}
+			for (double h : encoder.height) {
+				if (useFloat) {
+					out.writeFloat((float) h);
+				} else {
+					out.writeDouble(h);
+				}
+			}
+			treeCount++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			// patch up tree count in header
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(TREE_COUNT_OFFSET);
+				raf.writeInt(treeCount);
+			}
+		}
+
+		public int getTreeCount() {
+			return treeCount;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package tsa.evolution.tree;
+
+import beastfx.app.tools.Application;
+import beastfx.app.treeannotator.TreeAnnotator;
+import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+
+@Description("Converts a tree set in Nexus format into a binary tree set, which can be used as treeSetFile "
+		+ "in TreeSetLikelihood and IndexedTreeFromSet, and loads much faster than a Nexus file.")
+public class BinaryTreeSetConverter extends Runnable {
+	final public Input<TreeFile> treesInput = new Input<>("trees", "tree set file in Nexus format", Validate.REQUIRED);
+	final public Input<OutFile> outputInput = new Input<>("out", "output file for binary tree set", Validate.REQUIRED);
+	final public Input<Integer> burninInput = new Input<>("burnin", "percentage of trees to disregard as burn-in (default 0)", 0);
+	final public Input<Boolean> useFloatInput = new Input<>("float", "store node heights in single precision, which halves "
+			+ "the space needed for heights (default false)", false);
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		MemoryFriendlyTreeSet srcTreeSet = new TreeAnnotator().new MemoryFriendlyTreeSet(treesInput.get().getPath(), burninInput.get());
+		srcTreeSet.reset();
+		if (!srcTreeSet.hasNext()) {
+			throw new IllegalArgumentException("Could not find any trees in " + treesInput.get().getName());
+		}
+		Tree tree = srcTreeSet.next();
+		String [] taxa = tree.getTaxaNames();
+
+		try (BinaryTreeSet.Writer writer = new BinaryTreeSet.Writer(outputInput.get(), taxa, useFloatInput.get())) {
+			writer.add(tree);
+			while (srcTreeSet.hasNext()) {
+				writer.add(srcTreeSet.next());
+			}
+			Log.warning("Written " + writer.getTreeCount() + " trees with " + taxa.length + " taxa to " + outputInput.get().getPath());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new BinaryTreeSetConverter(), "Binary Tree Set Converter", args);
+	}
+
+}
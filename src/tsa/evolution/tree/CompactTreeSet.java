@@ -0,0 +1,169 @@
+package tsa.evolution.tree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Tree set stored as primitive arrays instead of Tree/Node object graphs.
+ * All trees are binary and share a single taxon table. Leaves are numbered by
+ * their position in the taxon table, internal nodes are numbered in post-order,
+ * so children always have a lower number than their parent and the root is the
+ * last node.
+ */
+abstract public class CompactTreeSet {
+	protected String [] taxa;
+	protected int taxonCount, nodeCount;
+
+	abstract public int getTreeCount();
+
+	/** parent of node in tree, -1 for the root **/
+	abstract public int getParent(int tree, int node);
+
+	/** return child (0 = left, 1 = right) of internal node **/
+	abstract public int getChild(int tree, int node, int child);
+
+	abstract public double getHeight(int tree, int node);
+
+	public String [] getTaxaNames() {
+		return taxa.clone();
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getLeafNodeCount() {
+		return taxonCount;
+	}
+
+	/** create Tree object for tree with given index **/
+	public Tree getTree(int tree) {
+		return getTree(tree, null);
+	}
+
+	/**
+	 * create Tree object for tree with given index
+	 * @param leafNr maps positions in the taxon table to leaf node numbers in the
+	 * created tree. If null, leaves are numbered by their position in the taxon table.
+	 */
+	public Tree getTree(int tree, int [] leafNr) {
+		Node [] nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = new Node();
+			nodes[i].setHeight(getHeight(tree, i));
+			if (i < taxonCount) {
+				nodes[i].setID(taxa[i]);
+				nodes[i].setNr(leafNr == null ? i : leafNr[i]);
+			} else {
+				nodes[i].setNr(i);
+			}
+		}
+		for (int i = taxonCount; i < nodeCount; i++) {
+			nodes[i].addChild(nodes[getChild(tree, i, 0)]);
+			nodes[i].addChild(nodes[getChild(tree, i, 1)]);
+		}
+		return new Tree(nodes[nodeCount - 1]);
+	}
+
+	/**
+	 * Make target tree equal to tree with given index, re-using the Node objects of
+	 * the target tree instead of creating new ones as Tree.assignFrom() does.
+	 * @param leafNr as for getTree(int, int[])
+	 */
+	public void assignTo(Tree target, int tree, int [] leafNr) {
+		if (target.getNodeCount() != nodeCount || target.getRoot().getNr() != nodeCount - 1) {
+			// node numbering differs from ours, so copy once and re-use nodes afterwards
+			target.assignFrom(getTree(tree, leafNr));
+			target.setEverythingDirty(true);
+			return;
+		}
+		Node [] nodes = target.getNodesAsArray();
+		for (int i = taxonCount; i < nodeCount; i++) {
+			Node node = nodes[i];
+			Node left = nodes[nodeNr(getChild(tree, i, 0), leafNr)];
+			Node right = nodes[nodeNr(getChild(tree, i, 1), leafNr)];
+			node.setLeft(left);
+			node.setRight(right);
+			left.setParent(node);
+			right.setParent(node);
+		}
+		nodes[nodeCount - 1].setParent(null);
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[nodeNr(i, leafNr)].setHeight(getHeight(tree, i));
+		}
+		target.setEverythingDirty(true);
+	}
+
+	private int nodeNr(int i, int [] leafNr) {
+		return (i < taxonCount && leafNr != null) ? leafNr[i] : i;
+	}
+
+	/**
+	 * Converts Tree objects into the parent/child/height arrays of a single record,
+	 * renumbering nodes in the order used by CompactTreeSet.
+	 */
+	static class Encoder {
+		Map<String, Integer> taxonIndex = new HashMap<>();
+		int taxonCount, nodeCount;
+		int [] parent, children;
+		double [] height;
+		private int nextInternal;
+		private int treeNr;
+
+		Encoder(String [] taxa) {
+			taxonCount = taxa.length;
+			nodeCount = 2 * taxonCount - 1;
+			for (int i = 0; i < taxonCount; i++) {
+				taxonIndex.put(taxa[i], i);
+			}
+			parent = new int[nodeCount];
+			children = new int[2 * (taxonCount - 1)];
+			height = new double[nodeCount];
+		}
+
+		/** fill parent, children and height arrays for tree, treeNr is only used in error messages **/
+		void encode(Tree tree, int treeNr) {
+			encode(tree.getRoot(), treeNr);
+		}
+
+		void encode(Node root, int treeNr) {
+			this.treeNr = treeNr;
+			nextInternal = taxonCount;
+			int rootNr = renumber(root);
+			if (rootNr != nodeCount - 1) {
+				throw new IllegalArgumentException("Tree " + treeNr + " has " + (rootNr - taxonCount + 2) +
+						" taxa, but expected " + taxonCount);
+			}
+			parent[rootNr] = -1;
+		}
+
+		/** number nodes in post-order, return number of node **/
+		private int renumber(Node node) {
+			int i;
+			if (node.isLeaf()) {
+				Integer index = taxonIndex.get(node.getID());
+				if (index == null) {
+					throw new IllegalArgumentException("Unknown taxon " + node.getID() + " in tree " + treeNr);
+				}
+				i = index;
+			} else {
+				if (node.getChildCount() != 2) {
+					throw new IllegalArgumentException("Only binary trees are supported, but tree " + treeNr +
+							" has a node with " + node.getChildCount() + " children");
+				}
+				int left = renumber(node.getLeft());
+				int right = renumber(node.getRight());
+				i = nextInternal++;
+				children[(i - taxonCount) * 2] = left;
+				children[(i - taxonCount) * 2 + 1] = right;
+				parent[left] = i;
+				parent[right] = i;
+			}
+			height[i] = node.getHeight();
+			return i;
+		}
+	}
+}
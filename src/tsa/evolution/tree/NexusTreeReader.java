@@ -0,0 +1,198 @@
+package tsa.evolution.tree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+
+@Description("Reads trees one at a time from a Nexus file, which may be gzip compressed. Expects every tree on "
+		+ "a line of its own, as written by BEAST.")
+public class NexusTreeReader implements AutoCloseable {
+	final BufferedReader in;
+	/** maps numbers in the translate block to taxon names, null if there is none **/
+	Map<String, String> translation;
+	/** taxon names in the order of the translate block **/
+	Set<String> translatedNames;
+	/** first tree statement, read while looking for the translate block **/
+	String pending;
+
+	public NexusTreeReader(File file) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		stream.mark(2);
+		int b0 = stream.read(), b1 = stream.read();
+		stream.reset();
+		if (b0 == 0x1f && b1 == 0x8b) {
+			stream = new GZIPInputStream(stream, 1 << 16);
+		}
+		in = new BufferedReader(new InputStreamReader(stream), 1 << 16);
+
+		String str = in.readLine();
+		while (str != null && !str.trim().toLowerCase().startsWith("begin trees")) {
+			// skip taxa block and anything else before the trees
+			str = in.readLine();
+		}
+		if (str == null) {
+			throw new IOException("Could not find trees block in " + file.getName());
+		}
+		while ((str = nextStatement()) != null) {
+			String lower = str.toLowerCase();
+			if (lower.startsWith("translate")) {
+				parseTranslation(str.substring("translate".length()));
+			} else if (lower.startsWith("tree")) {
+				pending = str;
+				break;
+			} else if (lower.startsWith("end")) {
+				break;
+			}
+		}
+	}
+
+	/** next statement in the trees block, with leading and trailing white space removed, or null at the end **/
+	private String nextStatement() throws IOException {
+		StringBuilder b = null;
+		String str;
+		while ((str = in.readLine()) != null) {
+			str = str.trim();
+			if (str.length() == 0 && b == null) {
+				continue;
+			}
+			if (b == null) {
+				b = new StringBuilder(str);
+			} else {
+				b.append(' ').append(str);
+			}
+			if (str.endsWith(";")) {
+				return b.toString();
+			}
+		}
+		return b == null ? null : b.toString();
+	}
+
+	private void parseTranslation(String str) {
+		translation = new HashMap<>();
+		translatedNames = new LinkedHashSet<>();
+		str = str.trim();
+		if (str.endsWith(";")) {
+			str = str.substring(0, str.length() - 1);
+		}
+		for (String entry : str.split(",")) {
+			String [] strs = entry.trim().split("\\s+", 2);
+			if (strs.length == 2) {
+				String name = strs[1].trim();
+				if (name.length() > 1 && (name.startsWith("'") && name.endsWith("'") || name.startsWith("\"") && name.endsWith("\""))) {
+					name = name.substring(1, name.length() - 1);
+				}
+				translation.put(strs[0], name);
+				translatedNames.add(name);
+			}
+		}
+	}
+
+	/**
+	 * taxon names of the translate block, or else of the first tree.
+	 * Should be called before any tree is read.
+	 */
+	public String [] getTaxaNames() throws IOException {
+		if (translation != null) {
+			return translatedNames.toArray(new String[0]);
+		}
+		if (pending == null) {
+			return new String[0];
+		}
+		return parseTree(toNewick(pending)).getTaxaNames();
+	}
+
+	/** next tree statement, or null if there are no more trees **/
+	private String nextTreeStatement() throws IOException {
+		String str = pending;
+		pending = null;
+		while (str == null) {
+			str = nextStatement();
+			if (str == null || str.toLowerCase().startsWith("end")) {
+				return null;
+			}
+			if (!str.toLowerCase().startsWith("tree")) {
+				str = null;
+			}
+		}
+		return str;
+	}
+
+	private static String toNewick(String statement) throws IOException {
+		int i = statement.indexOf('=');
+		if (i < 0) {
+			throw new IOException("Expected '=' in tree statement " + (statement.length() > 50 ? statement.substring(0, 50) + "..." : statement));
+		}
+		String str = statement.substring(i + 1).trim();
+		// remove comments such as [&R] before the tree
+		while (str.startsWith("[")) {
+			str = str.substring(str.indexOf(']') + 1).trim();
+		}
+		return str;
+	}
+
+	/** newick string of the next tree, or null if there are no more trees **/
+	public String nextNewick() throws IOException {
+		String str = nextTreeStatement();
+		return str == null ? null : toNewick(str);
+	}
+
+	/** move past the next tree without parsing it, return false if there are no more trees **/
+	public boolean skipTree() throws IOException {
+		return nextTreeStatement() != null;
+	}
+
+	/** move past all remaining trees, return the number of trees passed **/
+	public int countTrees() throws IOException {
+		int count = 0;
+		while (skipTree()) {
+			count++;
+		}
+		return count;
+	}
+
+	/** next tree with leaves labelled by taxon name, or null if there are no more trees **/
+	public Tree nextTree() throws IOException {
+		String newick = nextNewick();
+		if (newick == null) {
+			return null;
+		}
+		return parseTree(newick);
+	}
+
+	/**
+	 * tree with leaves labelled by taxon name from a newick string returned by nextNewick().
+	 * Does not read from the file, so threads can parse trees while another thread reads them.
+	 */
+	public Tree parseTree(String newick) throws IOException {
+		Tree tree = new TreeParser(newick, false, false, true, 0);
+		if (translation != null) {
+			for (Node leaf : tree.getExternalNodes()) {
+				String name = translation.get(leaf.getID());
+				if (name == null) {
+					throw new IOException("Taxon " + leaf.getID() + " not found in translate block");
+				}
+				leaf.setID(name);
+			}
+		}
+		return tree;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
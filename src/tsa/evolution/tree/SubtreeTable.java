@@ -0,0 +1,219 @@
+package tsa.evolution.tree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash-consed view of the trees in a CompactTreeSet: every distinct subtree (same
+ * topology and same branch lengths) occurring anywhere in the tree set gets a single
+ * entry, so likelihood calculations for it can be shared by all trees containing it.
+ * Leaves are subtrees 0 to taxonCount-1, internal subtrees follow in order of level
+ * (the number of edges on the longest path to a leaf), so all children of the subtrees
+ * of one level are in earlier levels and subtrees of one level can be calculated in parallel.
+ */
+public class SubtreeTable {
+	int taxonCount, subtreeCount;
+	/** children of internal subtrees, smallest first **/
+	int [] children;
+	/** lengths of the branches to the children of internal subtrees **/
+	double [] branchLengths;
+	/** first subtree of every level, with a sentinel at the end **/
+	int [] levelStart;
+	/** root subtree of every tree **/
+	int [] roots;
+
+	/** identifies subtree by its children and the lengths of the branches to them **/
+	static private class Key {
+		final int left, right;
+		final long leftLength, rightLength;
+
+		Key(int left, int right, double leftLength, double rightLength) {
+			this.left = left;
+			this.right = right;
+			this.leftLength = Double.doubleToLongBits(leftLength);
+			this.rightLength = Double.doubleToLongBits(rightLength);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return left == other.left && right == other.right && leftLength == other.leftLength && rightLength == other.rightLength;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = left * 31L + right;
+			h = h * 1000003L + leftLength;
+			h = h * 1000003L + rightLength;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/** number of trees looked at before deciding whether there is any sharing at all **/
+	final static int SAMPLE_TREE_COUNT = 32;
+
+	/** build table for trees firstTree up to firstTree + treeCount of treeSet **/
+	public SubtreeTable(CompactTreeSet treeSet, int firstTree, int treeCount) {
+		this(treeSet, firstTree, treeCount, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Table for trees firstTree up to firstTree + treeCount of treeSet, or null if it has more than
+	 * maxSubtreeCount internal subtrees. Building stops as soon as that is clear, so little time and
+	 * memory is spent on tree sets without shared subtrees, such as posteriors with continuous branch lengths.
+	 */
+	public static SubtreeTable build(CompactTreeSet treeSet, int firstTree, int treeCount, int maxSubtreeCount) {
+		SubtreeTable table = new SubtreeTable(treeSet, firstTree, treeCount, maxSubtreeCount);
+		return table.roots == null ? null : table;
+	}
+
+	/** builds the table, but leaves roots null if it was abandoned **/
+	private SubtreeTable(CompactTreeSet treeSet, int firstTree, int treeCount, int maxSubtreeCount) {
+		taxonCount = treeSet.getLeafNodeCount();
+		int nodeCount = treeSet.getNodeCount();
+		Map<Key, Integer> index = new HashMap<>();
+		int capacity = Math.max(16, nodeCount);
+		children = new int[capacity * 2];
+		branchLengths = new double[capacity * 2];
+		int [] level = new int[capacity];
+		int [] roots = new int[treeCount];
+
+		int [] subtreeOf = new int[nodeCount];
+		for (int i = 0; i < taxonCount; i++) {
+			subtreeOf[i] = i;
+		}
+		for (int t = 0; t < treeCount; t++) {
+			int tree = firstTree + t;
+			// internal nodes are in post-order, so children are always resolved before their parent
+			for (int node = taxonCount; node < nodeCount; node++) {
+				double height = treeSet.getHeight(tree, node);
+				int left = treeSet.getChild(tree, node, 0);
+				int right = treeSet.getChild(tree, node, 1);
+				int leftSubtree = subtreeOf[left], rightSubtree = subtreeOf[right];
+				double leftLength = height - treeSet.getHeight(tree, left);
+				double rightLength = height - treeSet.getHeight(tree, right);
+				if (leftSubtree > rightSubtree || (leftSubtree == rightSubtree && leftLength > rightLength)) {
+					int tmp = leftSubtree; leftSubtree = rightSubtree; rightSubtree = tmp;
+					double tmpLength = leftLength; leftLength = rightLength; rightLength = tmpLength;
+				}
+				Key key = new Key(leftSubtree, rightSubtree, leftLength, rightLength);
+				Integer subtree = index.get(key);
+				if (subtree == null) {
+					if (subtreeCount == level.length) {
+						capacity = level.length * 2;
+						children = Arrays.copyOf(children, capacity * 2);
+						branchLengths = Arrays.copyOf(branchLengths, capacity * 2);
+						level = Arrays.copyOf(level, capacity);
+					}
+					int k = subtreeCount++;
+					children[2 * k] = leftSubtree;
+					children[2 * k + 1] = rightSubtree;
+					branchLengths[2 * k] = leftLength;
+					branchLengths[2 * k + 1] = rightLength;
+					level[k] = 1 + Math.max(levelOf(level, leftSubtree), levelOf(level, rightSubtree));
+					subtree = taxonCount + k;
+					index.put(key, subtree);
+				}
+				subtreeOf[node] = subtree;
+				if (subtreeCount > maxSubtreeCount) {
+					return;
+				}
+			}
+			roots[t] = subtreeOf[nodeCount - 1];
+			if (t + 1 == SAMPLE_TREE_COUNT && treeCount > SAMPLE_TREE_COUNT && maxSubtreeCount < Integer.MAX_VALUE
+					&& subtreeCount * 10L > 9L * SAMPLE_TREE_COUNT * (nodeCount - taxonCount)) {
+				// less than 10% of the subtrees of the first trees are shared, so there is little to gain
+				return;
+			}
+		}
+		this.roots = roots;
+		sortByLevel(level);
+	}
+
+	private int levelOf(int [] level, int subtree) {
+		return subtree < taxonCount ? 0 : level[subtree - taxonCount];
+	}
+
+	/** renumber internal subtrees so that they are ordered by level **/
+	private void sortByLevel(int [] level) {
+		int maxLevel = 0;
+		for (int k = 0; k < subtreeCount; k++) {
+			maxLevel = Math.max(maxLevel, level[k]);
+		}
+		levelStart = new int[maxLevel + 1];
+		for (int k = 0; k < subtreeCount; k++) {
+			levelStart[level[k]]++;
+		}
+		// levels start at 1, convert counts to start positions
+		int start = taxonCount;
+		for (int l = 1; l <= maxLevel; l++) {
+			int count = levelStart[l];
+			levelStart[l - 1] = start;
+			start += count;
+		}
+		levelStart[maxLevel] = start;
+
+		int [] next = Arrays.copyOf(levelStart, maxLevel);
+		int [] newNr = new int[subtreeCount];
+		for (int k = 0; k < subtreeCount; k++) {
+			newNr[k] = next[level[k] - 1]++;
+		}
+		int [] newChildren = new int[subtreeCount * 2];
+		double [] newLengths = new double[subtreeCount * 2];
+		for (int k = 0; k < subtreeCount; k++) {
+			int j = newNr[k] - taxonCount;
+			for (int c = 0; c < 2; c++) {
+				int child = children[2 * k + c];
+				newChildren[2 * j + c] = child < taxonCount ? child : newNr[child - taxonCount];
+				newLengths[2 * j + c] = branchLengths[2 * k + c];
+			}
+		}
+		children = newChildren;
+		branchLengths = newLengths;
+		for (int t = 0; t < roots.length; t++) {
+			roots[t] = newNr[roots[t] - taxonCount];
+		}
+	}
+
+	/** number of distinct internal subtrees **/
+	public int getSubtreeCount() {
+		return subtreeCount;
+	}
+
+	public int getLeafNodeCount() {
+		return taxonCount;
+	}
+
+	/** return child (0 or 1) of internal subtree **/
+	public int getChild(int subtree, int child) {
+		return children[2 * (subtree - taxonCount) + child];
+	}
+
+	/** return length of branch to child (0 or 1) of internal subtree **/
+	public double getBranchLength(int subtree, int child) {
+		return branchLengths[2 * (subtree - taxonCount) + child];
+	}
+
+	/** return subtree that forms the tree with given index (relative to firstTree) **/
+	public int getRoot(int tree) {
+		return roots[tree];
+	}
+
+	public int getLevelCount() {
+		return levelStart.length - 1;
+	}
+
+	/** first internal subtree in given level, levels are numbered from 0 **/
+	public int getLevelStart(int level) {
+		return levelStart[level];
+	}
+
+	/** one past the last internal subtree in given level **/
+	public int getLevelEnd(int level) {
+		return levelStart[level + 1];
+	}
+}
@@ -0,0 +1,209 @@
+package tsa.evolution.tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+@Description("Loads trees into an ArrayTreeSet in parallel. Burn-in trees are skipped without parsing them, "
+		+ "and the other trees are parsed, reduced to the taxa of interest and encoded by several threads "
+		+ "while the file is read. Only a few batches of trees are held between reading and encoding, "
+		+ "so memory use does not grow with the size of the tree set beyond that of the arrays.")
+public class TreeSetIngest {
+	/** default number of trees handed to a thread at a time **/
+	public final static int BATCH_SIZE = 256;
+
+	/** position of every name in names **/
+	public static Map<String, Integer> index(String [] names) {
+		Map<String, Integer> index = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			index.put(names[i], i);
+		}
+		return index;
+	}
+
+	/**
+	 * Read trees from reader: the first skip trees are passed over, and the count trees after that are
+	 * stored with taxa not in names removed, and tips numbered as in names.
+	 * @param threadCount number of threads parsing trees, next to the calling thread which reads the file
+	 */
+	public static ArrayTreeSet readNexus(NexusTreeReader reader, int skip, int count, String [] names, boolean useFloat,
+			int threadCount) throws IOException {
+		return readNexus(reader, skip, count, names, useFloat, threadCount, BATCH_SIZE);
+	}
+
+	/** as readNexus above, handing batchSize trees to a thread at a time **/
+	public static ArrayTreeSet readNexus(NexusTreeReader reader, int skip, int count, String [] names, boolean useFloat,
+			int threadCount, int batchSize) throws IOException {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		for (int i = 0; i < skip; i++) {
+			if (!reader.skipTree()) {
+				throw new IOException("Expected at least " + (skip + count) + " trees, but found " + i);
+			}
+		}
+
+		threadCount = Math.max(1, threadCount);
+		ArrayTreeSet trees = new ArrayTreeSet(names, useFloat, count);
+		Map<String, Integer> taxonIndex = index(names);
+		ExecutorService exec = newExecutor(threadCount);
+		// limits the number of batches read but not yet encoded
+		Semaphore permits = new Semaphore(2 * threadCount);
+		List<Future<?>> jobs = new ArrayList<>();
+		try {
+			int i = 0;
+			while (i < count) {
+				final int from = i;
+				List<String> batch = new ArrayList<>(batchSize);
+				while (batch.size() < batchSize && i < count) {
+					String newick = reader.nextNewick();
+					if (newick == null) {
+						throw new IOException("Expected at least " + (skip + count) + " trees, but found " + (skip + i));
+					}
+					batch.add(newick);
+					i++;
+				}
+				permits.acquire();
+				jobs.add(exec.submit(() -> {
+					try {
+						CompactTreeSet.Encoder encoder = trees.newEncoder();
+						for (int k = 0; k < batch.size(); k++) {
+							Tree tree = reader.parseTree(batch.get(k));
+							trees.set(from + k, prune(tree.getRoot(), taxonIndex), encoder);
+						}
+					} finally {
+						permits.release();
+					}
+					return null;
+				}));
+				if (jobs.get(0).isDone()) {
+					// stop reading as soon as a batch failed
+					checkJob(jobs.remove(0));
+				}
+			}
+			for (Future<?> job : jobs) {
+				checkJob(job);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading trees");
+		} finally {
+			exec.shutdownNow();
+		}
+		trees.setTreeCount(count);
+		return trees;
+	}
+
+	/**
+	 * Copy trees first to first + count - 1 of source, with taxa not in names removed, and tips numbered as in names.
+	 * @param threadCount number of threads copying trees
+	 */
+	public static ArrayTreeSet copy(CompactTreeSet source, int first, int count, String [] names, boolean useFloat, int threadCount) {
+		return copy(source, first, count, names, useFloat, threadCount, BATCH_SIZE);
+	}
+
+	/** as copy above, handing batchSize trees to a thread at a time **/
+	public static ArrayTreeSet copy(CompactTreeSet source, int first, int count, String [] names, boolean useFloat,
+			int threadCount, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		threadCount = Math.max(1, threadCount);
+		ArrayTreeSet trees = new ArrayTreeSet(names, useFloat, count);
+		Map<String, Integer> taxonIndex = index(names);
+		ExecutorService exec = newExecutor(threadCount);
+		List<Future<?>> jobs = new ArrayList<>();
+		try {
+			for (int i = 0; i < count; i += batchSize) {
+				final int from = i;
+				final int to = Math.min(count, i + batchSize);
+				jobs.add(exec.submit(() -> {
+					CompactTreeSet.Encoder encoder = trees.newEncoder();
+					for (int k = from; k < to; k++) {
+						trees.set(k, prune(source.getTree(first + k).getRoot(), taxonIndex), encoder);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> job : jobs) {
+				checkJob(job);
+			}
+		} catch (IOException e) {
+			// source does not read files
+			throw new RuntimeException(e.getMessage());
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while copying trees");
+		} finally {
+			exec.shutdownNow();
+		}
+		trees.setTreeCount(count);
+		return trees;
+	}
+
+	/**
+	 * Remove leaves whose taxon is not in taxonIndex, together with the internal nodes that are left with one child.
+	 * Nodes are only changed if any leaf below them is removed.
+	 * @return root of what is left, null if no taxa are left
+	 */
+	public static Node prune(Node node, Map<String, Integer> taxonIndex) {
+		if (node.isLeaf()) {
+			return taxonIndex.containsKey(node.getID()) ? node : null;
+		}
+		if (node.getChildCount() != 2) {
+			// not binary, which is reported when encoding the tree
+			return node;
+		}
+		Node left = node.getLeft();
+		Node right = node.getRight();
+		Node left_ = prune(left, taxonIndex);
+		Node right_ = prune(right, taxonIndex);
+		if (left_ == null) {
+			return right_;
+		}
+		if (right_ == null) {
+			return left_;
+		}
+		if (left_ != left || right_ != right) {
+			node.removeAllChildren(false);
+			node.addChild(left_);
+			node.addChild(right_);
+		}
+		return node;
+	}
+
+	private static ExecutorService newExecutor(int threadCount) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threadCount, r -> {
+			Thread thread = new Thread(r, "TreeSetIngest-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** wait for job, and pass on the exception if it failed **/
+	private static void checkJob(Future<?> job) throws IOException, InterruptedException {
+		try {
+			job.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}